@@ -0,0 +1,98 @@
+/**
+ * ArcPolicy
+ * Megiddo and Modha's adaptive replacement cache.  T1 holds blocks used
+ * once since they came in and T2 blocks used again, both in LRU order;
+ * the ghost lists B1 and B2 remember the blocks evicted from each.  A miss
+ * on a block in B1 means T1 was too small, one in B2 that T2 was, and the
+ * target size p of T1 moves accordingly.  A scan only ever fills T1, so
+ * the blocks in T2 stay unless the workload shows it pays to give them up.
+ *
+ * The stripe picks its victim before it tells the policy which block
+ * came in, so p adapts at insert( ) and steers the next replacement
+ * rather than the current one.
+ */
+public class ArcPolicy implements CachePolicy {
+   private static final int T1 = 0;
+   private static final int T2 = 1;
+   private static final int B1 = 0; // ghost lists
+   private static final int B2 = 1;
+
+   private final int frames;
+   private IndexLists lists;   // T1 and T2, of frames
+   private GhostLists ghosts;  // B1 and B2, of block numbers
+   private int blockOf[];      // frame -> block number
+   private int p;              // the target size of T1
+
+   public ArcPolicy( int frames ) {
+      this.frames = frames;
+      lists = new IndexLists( frames, 2 );
+      ghosts = new GhostLists( frames, 2 );
+      blockOf = new int[frames];
+      clear( );
+   }
+
+   public void hit( int frame ) {
+      lists.addFront( T2, frame );
+   }
+
+   public void insert( int frame, int blockId ) {
+      // a block coming back from a ghost list moves p towards that list
+      int ghost = ghosts.listOf( blockId );
+      if ( ghost == B1 )
+         p = Math.min( p + Math.max( ghosts.size( B2 ) / ghosts.size( B1 ),
+                                     1 ), frames );
+      else if ( ghost == B2 )
+         p = Math.max( p - Math.max( ghosts.size( B1 ) / ghosts.size( B2 ),
+                                     1 ), 0 );
+      ghosts.remove( blockId );
+
+      // the block leaving frame is remembered by the list it left
+      if ( blockOf[frame] != IntMap.NONE ) {
+         int list = lists.listOf( frame );
+         lists.remove( frame );
+         if ( list == T1 && lists.size( T1 ) + ghosts.size( B1 ) >= frames )
+            ghosts.dropBack( B1 );
+         if ( ghosts.isFull( ) )
+            ghosts.dropBack( ghosts.size( B2 ) > 0 ? B2 : B1 );
+         ghosts.add( list == T1 ? B1 : B2, blockOf[frame] );
+      }
+
+      lists.addFront( ghost == IndexLists.NONE ? T1 : T2, frame );
+      blockOf[frame] = blockId;
+   }
+
+   // a block dropped on advice is not remembered in a ghost list
+   public void remove( int frame ) {
+      lists.remove( frame );
+      blockOf[frame] = IntMap.NONE;
+   }
+
+   public int victim( int blockId, Frames frames ) {
+      int t1 = lists.size( T1 );
+      boolean fromT1 = t1 > 0 &&
+         ( t1 > p || ( t1 == p && ghosts.listOf( blockId ) == B2 ) );
+      int first = fromT1 ? T1 : T2;
+      int frame = oldest( first, frames );
+      return ( frame != IntMap.NONE ) ? frame
+                                      : oldest( T1 + T2 - first, frames );
+   }
+
+   // the frame nearest the back of list that can be evicted
+   private int oldest( int list, Frames frames ) {
+      int frame = lists.back( list );
+      while ( frame != IndexLists.NONE && !frames.canEvict( frame ) )
+         frame = lists.previous( frame );
+      return frame;
+   }
+
+   public void clear( ) {
+      lists.clear( );
+      ghosts.clear( );
+      java.util.Arrays.fill( blockOf, IntMap.NONE );
+      p = 0;
+   }
+
+   public String getName( ) {
+      return "arc";
+   }
+}
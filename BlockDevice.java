@@ -0,0 +1,32 @@
+/**
+ * BlockDevice
+ * what Kernel needs from a disk: queue raw block I/O and a SYNC.  Every
+ * call returns the queued DiskRequest, which is finished by its own disk
+ * interrupt, or null if the device cannot take another request right now.
+ */
+public interface BlockDevice {
+
+   // read one block into buffer
+   DiskRequest read( int blockId, byte buffer[] );
+
+   // write one block from buffer
+   DiskRequest write( int blockId, byte buffer[] );
+
+   // read buffer.length / Disk.blockSize blocks from blockId on
+   DiskRequest readv( int blockId, byte buffer[] );
+
+   // write buffer.length / Disk.blockSize blocks from blockId on
+   DiskRequest writev( int blockId, byte buffer[] );
+
+   // make every block written so far persistent
+   DiskRequest sync( );
+
+   // start the device's threads
+   void start( );
+
+   // append what the device has been doing to out
+   void report( StringBuffer out );
+
+   // start counting from zero
+   void resetStats( );
+}
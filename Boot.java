@@ -7,7 +7,7 @@ public class Boot
 
     public static void main ( String args[] ) {
 	SysLib.cerr( "threadOS ver 1.0:\n" );
-	SysLib.boot( );
+	SysLib.boot( args ); // e.g. java Boot disk=mmap
 	SysLib.cerr( "Type ? for help\n" );
 
 	String[] loader = new String[1];
@@ -0,0 +1,573 @@
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Cache
+ * a buffer cache of disk blocks behind SysLib.cread( ), cwrite( ), csync( )
+ * and cflush( ).  Each cached block occupies one frame; a block number is
+ * mapped to its frame through an IntMap, so finding a block costs the
+ * same with ten frames or a hundred thousand.  Frames are handed out in
+ * order until all are in use, after which a CachePolicy picks the victim:
+ * the second-chance clock, or the scan-resistant 2Q or ARC.  Only clean
+ * frames are evicted: a CacheFlusher writes dirty blocks back in the
+ * background once they grow old or too many of them pile up, so a miss
+ * never has to write a block before it can read its own.  The frames
+ * live off the Java heap, in a FrameArena.
+ *
+ * SysLib.cadvise( ) tells the cache what is coming: blocks that will be
+ * needed are read ahead asynchronously into free or clean frames, and
+ * clean blocks that will not be needed are dropped, their frames handed
+ * out before the policy is asked for a victim.
+ *
+ * The frames are split into stripes, each with its own lock, map and
+ * policy, and a block always lives in the stripe its number hashes to.
+ * Threads using blocks of different stripes never wait for each other.
+ * No lock is held while the disk transfers a block: the frame is marked
+ * busy instead, and only threads that need that very frame wait for it.
+ */
+public class Cache {
+   private static final int HIT = -1; // Stripe.acquire( ) needs no I/O
+   private static final int maxRun = 128; // blocks per write-back command
+
+   private int blockSize;
+   private int frames;
+   private FrameArena arena;
+   private Stripe stripes[];
+   private CacheFlusher flusher;
+   private long dirtyTaken[];  // writeBack( long )'s blocks, guarded by it
+
+   private class Entry {
+      public static final int INVALID = -1;
+      public boolean dirty = false;
+      public boolean busy = false;   // being read or written back
+      public int block = INVALID;    // the disk block held in this frame
+      public long dirtied;           // when it last went from clean to dirty
+   }
+
+   // A share of the frames, frame 0 being frame first of the arena.  Its
+   // monitor guards the entries, the map, the policy and the counters; the
+   // page of a busy frame belongs to the thread that made it busy.
+   private class Stripe implements CachePolicy.Frames {
+      private final int first;     // where its frames start in the arena
+      private Entry pageTable[];   // frame state
+      private IntMap frameOf;      // block number -> frame
+      private CachePolicy policy;
+      private int used;            // frames handed out since the last flush
+      private int free[];          // frames whose block was dropped
+      private int freeFrames;
+      private int dirtyFrames;
+      private int dirtyLimit;      // dirtyFrames that wake up the flusher
+      private long oldestDirty;    // no dirty frame was dirtied before it
+      private long hits;
+      private long misses;
+      private long stalls;         // misses that waited for the flusher
+      private long prefetched;     // blocks read ahead
+      private long dropped;        // blocks dropped on advice
+
+      Stripe( int first, int frames, String policyType ) {
+         this.first = first;
+         pageTable = new Entry[frames];
+         for ( int i = 0; i < frames; i++ )
+            pageTable[i] = new Entry( );
+         frameOf = new IntMap( frames );
+         policy = createPolicy( policyType, frames );
+         used = 0;
+         free = new int[frames];
+         freeFrames = 0;
+         dirtyFrames = 0;
+         dirtyLimit = Math.max( frames * CacheFlusher.dirtyRatio / 100, 1 );
+         oldestDirty = Long.MAX_VALUE;
+      }
+
+      public boolean canEvict( int frame ) {
+         return !pageTable[frame].busy && !pageTable[frame].dirty &&
+            pageTable[frame].block != Entry.INVALID; // a free frame
+      }
+
+      // Copies blockId to or from buffer at offset and returns HIT if it
+      // is cached or written.  Otherwise returns a frame mapped to blockId
+      // and made busy for the caller to read the block into.
+      synchronized int acquire( int blockId, byte buffer[], int offset,
+                                boolean write ) {
+         while ( true ) {
+            int frame = frameOf.get( blockId );
+            if ( frame != IntMap.NONE ) {
+               Entry entry = pageTable[frame];
+               if ( entry.busy ) {
+                  await( );
+                  continue;
+               }
+               if ( write ) {
+                  arena.put( first + frame, buffer, offset );
+                  dirty( entry );
+               } else
+                  arena.get( first + frame, buffer, offset );
+               policy.hit( frame );
+               hits++;
+               return HIT;
+            }
+
+            if ( ( frame = nextVictim( blockId ) ) == IntMap.NONE )
+               continue; // waited, so blockId may be cached by now
+            Entry entry = map( frame, blockId );
+            misses++;
+            if ( !write ) {
+               entry.busy = true;
+               return frame;
+            }
+            arena.put( first + frame, buffer, offset );
+            dirty( entry );
+            return HIT;
+         }
+      }
+
+      // frame, which is free or clean, now holds blockId
+      private Entry map( int frame, int blockId ) {
+         Entry entry = pageTable[frame];
+         if ( entry.block != Entry.INVALID )
+            frameOf.remove( entry.block );
+         entry.block = blockId;
+         frameOf.put( blockId, frame );
+         policy.insert( frame, blockId );
+         return entry;
+      }
+
+      // frame holds no block any more and is the next one handed out
+      private void unmap( int frame ) {
+         frameOf.remove( pageTable[frame].block );
+         pageTable[frame].block = Entry.INVALID;
+         policy.remove( frame );
+         free[freeFrames++] = frame;
+      }
+
+      // Maps blockId, if it is not cached and a frame is free or clean, to
+      // a frame made busy for the caller to read the block into; returns
+      // the frame or IntMap.NONE.
+      synchronized int reserve( int blockId ) {
+         if ( frameOf.get( blockId ) != IntMap.NONE )
+            return IntMap.NONE;
+         int frame = freeFrame( blockId );
+         if ( frame == IntMap.NONE )
+            return IntMap.NONE;
+         map( frame, blockId ).busy = true;
+         prefetched++;
+         return frame;
+      }
+
+      // a frame made busy by reserve( ) has been read into run at offset,
+      // or has failed to be read and is given up
+      synchronized void filled( int frame, byte run[], int offset,
+                               boolean ok ) {
+         if ( ok )
+            arena.put( first + frame, run, offset );
+         else
+            unmap( frame );
+         pageTable[frame].busy = false;
+         notifyAll( );
+      }
+
+      // forgets blockId if it is cached, clean and not busy
+      synchronized void drop( int blockId ) {
+         int frame = frameOf.get( blockId );
+         if ( frame != IntMap.NONE && canEvict( frame ) ) {
+            unmap( frame );
+            dropped++;
+         }
+      }
+
+      // a clean entry becomes dirty; too many dirty ones wake the flusher
+      private void dirty( Entry entry ) {
+         if ( entry.dirty )
+            return;
+         entry.dirty = true;
+         entry.dirtied = System.currentTimeMillis( );
+         oldestDirty = Math.min( oldestDirty, entry.dirtied );
+         if ( ++dirtyFrames == dirtyLimit )
+            flusher.wakeUp( );
+      }
+
+      // block, read from disk, goes in frame and to buffer at offset
+      synchronized void loaded( int frame, byte block[], byte buffer[],
+                                int offset ) {
+         arena.put( first + frame, block, 0 );
+         System.arraycopy( block, 0, buffer, offset, blockSize );
+         pageTable[frame].busy = false;
+         notifyAll( );
+      }
+
+      // frame has been written back
+      synchronized void cleaned( int frame ) {
+         pageTable[frame].dirty = false;
+         pageTable[frame].busy = false;
+         dirtyFrames--;
+         notifyAll( );
+      }
+
+      // Makes every frame dirtied before time busy for writing back and
+      // stores it in dirty from count on, as its block number in the high
+      // and the frame in the low half; returns the new count.  A stripe
+      // with nothing dirtied before time is not scanned.  Writing back
+      // everything, with time Long.MAX_VALUE, waits for busy frames, as
+      // they may hold data written before the caller started; an age pass
+      // leaves them to the next one.
+      synchronized int takeDirty( long time, long dirty[], int count ) {
+         if ( dirtyFrames == 0 || oldestDirty >= time )
+            return count;
+         long oldest = Long.MAX_VALUE; // of the frames left dirty
+         for ( int frame = 0; frame < used; frame++ ) {
+            Entry entry = pageTable[frame];
+            if ( entry.busy && time != Long.MAX_VALUE ) {
+               if ( entry.dirty )
+                  oldest = Math.min( oldest, entry.dirtied );
+               continue;
+            }
+            while ( entry.busy ) {
+               // frames already passed may be dirtied meanwhile
+               oldest = Math.min( oldest, System.currentTimeMillis( ) );
+               await( );
+            }
+            if ( !entry.dirty )
+               continue;
+            if ( entry.dirtied < time ) {
+               entry.busy = true;
+               dirty[count++] = ( long )entry.block << 32 | frame;
+            } else
+               oldest = Math.min( oldest, entry.dirtied );
+         }
+         oldestDirty = oldest;
+         return count;
+      }
+
+      // Makes blockId busy for writing back if it is cached and dirty, and
+      // stores it in dirty at count as takeDirty( ) does; returns the new
+      // count.
+      synchronized int takeBlock( int blockId, long dirty[], int count ) {
+         int frame;
+         while ( ( frame = frameOf.get( blockId ) ) != IntMap.NONE &&
+                 pageTable[frame].busy )
+            await( );
+         if ( frame != IntMap.NONE && pageTable[frame].dirty ) {
+            pageTable[frame].busy = true;
+            dirty[count++] = ( long )blockId << 32 | frame;
+         }
+         return count;
+      }
+
+      // Forgets every block, unless one was dirtied since it was written
+      // back; returns whether it did.
+      synchronized boolean invalidate( ) {
+         for ( int i = 0; i < used; i++ ) {
+            while ( pageTable[i].busy )
+               await( );
+            if ( pageTable[i].dirty )
+               return false;
+         }
+         for ( int i = 0; i < used; i++ )
+            pageTable[i].block = Entry.INVALID;
+         frameOf.clear( );
+         policy.clear( );
+         used = 0;
+         freeFrames = 0;
+         return true;
+      }
+
+      // a frame to take blockId that is neither busy nor dirty: a free or
+      // never used one or the policy's victim, or IntMap.NONE
+      private int freeFrame( int blockId ) {
+         if ( freeFrames > 0 )
+            return free[--freeFrames];
+         if ( used < pageTable.length )
+            return used++;
+         return policy.victim( blockId, this );
+      }
+
+      // freeFrame( ), or IntMap.NONE after waiting for a frame to come free
+      private int nextVictim( int blockId ) {
+         int frame = freeFrame( blockId );
+         if ( frame == IntMap.NONE ) {
+            // every frame is busy or dirty
+            stalls++;
+            flusher.wakeUp( );
+            await( );
+         }
+         return frame;
+      }
+
+      synchronized void report( long counts[] ) {
+         counts[0] += hits;
+         counts[1] += misses;
+         counts[2] += stalls;
+         counts[3] += dirtyFrames;
+         counts[4] += prefetched;
+         counts[5] += dropped;
+      }
+
+      synchronized void resetStats( ) {
+         hits = misses = stalls = prefetched = dropped = 0;
+      }
+
+      private void await( ) {
+         try {
+            wait( );
+         } catch ( InterruptedException e ) {
+         }
+      }
+   }
+
+   public Cache( int blockSize, int cacheBlocks ) {
+      this( blockSize, cacheBlocks, "clock" );
+   }
+
+   // a cache replacing blocks with the policy named "clock", "2q" or "arc"
+   public Cache( int blockSize, int cacheBlocks, String policy ) {
+      this.blockSize = blockSize;
+      frames = cacheBlocks;
+      if ( !policy.equals( "clock" ) && !policy.equals( "2q" ) &&
+           !policy.equals( "arc" ) ) {
+         SysLib.cerr( "threadOS: unknown cache policy " + policy +
+                      ", using clock\n" );
+         policy = "clock";
+      }
+
+      // a few stripes per core, each with at least one frame
+      int count = Integer.highestOneBit(
+         Math.min( 4 * Runtime.getRuntime( ).availableProcessors( ),
+                   cacheBlocks ) );
+      arena = new FrameArena( cacheBlocks, blockSize );
+      dirtyTaken = new long[cacheBlocks];
+      stripes = new Stripe[count];
+      for ( int i = 0, first = 0; i < count; i++ ) {
+         int share = cacheBlocks / count + ( i < cacheBlocks % count ? 1 : 0 );
+         stripes[i] = new Stripe( first, share, policy );
+         first += share;
+      }
+
+      flusher = new CacheFlusher( this );
+      flusher.start( );
+   }
+
+   private CachePolicy createPolicy( String type, int frames ) {
+      if ( type.equals( "2q" ) )
+         return new TwoQueuePolicy( frames );
+      if ( type.equals( "arc" ) )
+         return new ArcPolicy( frames );
+      return new ClockPolicy( frames );
+   }
+
+   private Stripe stripeOf( int blockId ) {
+      int hash = blockId ^ ( blockId >>> 16 );
+      return stripes[hash & ( stripes.length - 1 )];
+   }
+
+   // reads or writes blockId from or to buffer at offset through its
+   // stripe, reading a missing block with no lock held
+   private void access( int blockId, byte buffer[], int offset,
+                        boolean write ) {
+      Stripe stripe = stripeOf( blockId );
+      int frame = stripe.acquire( blockId, buffer, offset, write );
+      if ( frame != HIT ) {
+         byte block[] = new byte[blockSize];
+         SysLib.rawread( blockId, block );
+         stripe.loaded( frame, block, buffer, offset );
+      }
+   }
+
+   public boolean read( int blockId, byte buffer[] ) {
+      if ( blockId < 0 ) {
+         SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+         return false;
+      }
+      access( blockId, buffer, 0, false );
+      return true;
+   }
+
+   public boolean write( int blockId, byte buffer[] ) {
+      if ( blockId < 0 ) {
+         SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+         return false;
+      }
+      access( blockId, buffer, 0, true );
+      return true;
+   }
+
+   // reads buffer.length / blockSize blocks starting at blockId
+   public boolean readv( int blockId, byte buffer[] ) {
+      if ( blockId < 0 || buffer.length % blockSize != 0 ) {
+         SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+         return false;
+      }
+      for ( int i = 0; i < buffer.length / blockSize; i++ )
+         access( blockId + i, buffer, i * blockSize, false );
+      return true;
+   }
+
+   // writes buffer.length / blockSize blocks starting at blockId
+   public boolean writev( int blockId, byte buffer[] ) {
+      if ( blockId < 0 || buffer.length % blockSize != 0 ) {
+         SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+         return false;
+      }
+      for ( int i = 0; i < buffer.length / blockSize; i++ )
+         access( blockId + i, buffer, i * blockSize, true );
+      return true;
+   }
+
+   // Acts on advice about count blocks from blockId: ADVISE_WILLNEED reads
+   // them ahead, ADVISE_DONTNEED drops the clean ones.  The other advice
+   // is about the order a file is read in, which only the file system
+   // knows what to do with.
+   public boolean advise( int blockId, int count, int advice ) {
+      if ( blockId < 0 || count < 0 || advice < Kernel.ADVISE_NORMAL ||
+           advice > Kernel.ADVISE_DONTNEED ) {
+         SysLib.cerr( "threadOS: a wrong blockId for cadvise\n" );
+         return false;
+      }
+      if ( advice == Kernel.ADVISE_WILLNEED )
+         prefetch( blockId, count );
+      else if ( advice == Kernel.ADVISE_DONTNEED )
+         for ( int i = 0; i < count; i++ )
+            stripeOf( blockId + i ).drop( blockId + i );
+      return true;
+   }
+
+   // Starts reading the blocks from blockId on that are not cached, each
+   // run of consecutive ones in one asynchronous command, and returns.
+   // Only free or clean frames are taken, and no more than half the cache,
+   // so read-ahead neither waits for the flusher nor pushes out itself.
+   private void prefetch( int blockId, int count ) {
+      count = Math.min( count, Math.max( frames / 2, 1 ) );
+      int i = 0;
+      while ( i < count ) {
+         final int start = blockId + i;
+         final int taken[] = new int[Math.min( count - i, maxRun )];
+         int n = 0;
+         while ( n < taken.length &&
+                 ( taken[n] = stripeOf( start + n ).reserve( start + n ) )
+                 != IntMap.NONE )
+            n++;
+         if ( n == 0 ) {
+            i++; // cached already, or no frame to spare
+            continue;
+         }
+
+         final int blocks = n;
+         final byte run[] = new byte[n * blockSize];
+         // completed by the disk interrupt: only copy and wake up there
+         SysLib.rawreadAsync( start, run ).thenAccept(
+            new Consumer<Integer>( ) {
+               public void accept( Integer status ) {
+                  for ( int j = 0; j < blocks; j++ )
+                     stripeOf( start + j ).filled(
+                        taken[j], run, j * blockSize,
+                        status.intValue( ) == Kernel.OK );
+               }
+            } );
+         i += n;
+      }
+   }
+
+   // Writes every block dirtied before the call to the disk, but leaves
+   // the disk to flush them to its image when it likes.
+   public void writeBack( ) {
+      writeBack( Long.MAX_VALUE );
+   }
+
+   // Writes the blocks dirtied before time to the disk, in block order and
+   // each run of consecutive blocks in as few vectored commands as maxRun
+   // allows.
+   public void writeBack( long time ) {
+      synchronized ( dirtyTaken ) {
+         int taken = 0;
+         for ( int i = 0; i < stripes.length; i++ )
+            taken = stripes[i].takeDirty( time, dirtyTaken, taken );
+         write( dirtyTaken, taken );
+      }
+   }
+
+   // Writes the dirty blocks from blockId to blockId + count - 1 to the
+   // disk and leaves the rest of the cache alone, so that the caller can
+   // order these blocks before others without flushing every stripe.
+   public void writeBack( int blockId, int count ) {
+      long dirty[] = new long[Math.min( count, frames )];
+      int taken = 0;
+      for ( int i = 0; i < count && taken < dirty.length; i++ )
+         taken = stripeOf( blockId + i ).takeBlock( blockId + i, dirty,
+                                                    taken );
+      write( dirty, taken );
+   }
+
+   // Writes the first taken blocks of dirty, as made busy by takeDirty( )
+   // or takeBlock( ), and marks them clean.
+   private void write( long dirty[], int taken ) {
+      Arrays.sort( dirty, 0, taken );
+
+      int i = 0;
+      while ( i < taken ) {
+         int first = ( int )( dirty[i] >>> 32 );
+         int count = 1;
+         while ( count < maxRun && i + count < taken &&
+                 ( int )( dirty[i + count] >>> 32 ) == first + count )
+            count++;
+
+         byte run[] = new byte[count * blockSize];
+         for ( int j = 0; j < count; j++ )
+            arena.get( frameOf( dirty[i + j] ), run, j * blockSize );
+         if ( count == 1 )
+            SysLib.rawwrite( first, run );
+         else
+            SysLib.rawwritev( first, run );
+         for ( int j = 0; j < count; j++ )
+            stripeOf( ( int )( dirty[i + j] >>> 32 ) ).cleaned(
+               ( int )dirty[i + j] );
+         i += count;
+      }
+   }
+
+   // the arena frame of a frame taken by takeDirty( )
+   private int frameOf( long taken ) {
+      return stripeOf( ( int )( taken >>> 32 ) ).first + ( int )taken;
+   }
+
+   // the number of dirty blocks
+   public int dirtyBlocks( ) {
+      long counts[] = new long[6];
+      for ( int i = 0; i < stripes.length; i++ )
+         stripes[i].report( counts );
+      return ( int )counts[3];
+   }
+
+   public int getFrames( ) {
+      return frames;
+   }
+
+   public void report( StringBuffer out ) {
+      long counts[] = new long[6];
+      for ( int i = 0; i < stripes.length; i++ )
+         stripes[i].report( counts );
+      long lookups = counts[0] + counts[1];
+      out.append( "cache " + stripes[0].policy.getName( ) + ", " + frames +
+                  " blocks in " + stripes.length + " stripes: hits=" +
+                  counts[0] + " misses=" + counts[1] + " hit ratio=" +
+                  ( lookups > 0 ? 100 * counts[0] / lookups : 0 ) +
+                  "% dirty=" + counts[3] + " waits for the flusher=" +
+                  counts[2] + " prefetched=" + counts[4] + " dropped=" +
+                  counts[5] + "\n" );
+   }
+
+   public void resetStats( ) {
+      for ( int i = 0; i < stripes.length; i++ )
+         stripes[i].resetStats( );
+   }
+
+   public void sync( ) {
+      writeBack( );
+      SysLib.sync( );
+   }
+
+   public void flush( ) {
+      for ( int i = 0; i < stripes.length; i++ )
+         while ( stripes[i].invalidate( ) == false )
+            writeBack( );
+      SysLib.sync( );
+   }
+}
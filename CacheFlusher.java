@@ -0,0 +1,52 @@
+/**
+ * CacheFlusher
+ * writes dirty blocks of a Cache back to the disk in the background, so
+ * that the threads using the cache neither write back victims nor find
+ * every frame dirty.  Every interval ms it writes the blocks that have
+ * been dirty for maxAge ms; once dirtyRatio percent of a stripe's frames
+ * are dirty, or a miss finds no clean frame, it is woken up to write back
+ * every dirty block.  Cache.writeBack( ) sorts what it writes by block
+ * number and merges adjacent blocks into one disk command.
+ */
+public class CacheFlusher extends Thread {
+   public static final int interval = 500;  // ms between age checks
+   public static final int maxAge = 3000;   // ms a block may stay dirty
+   public static final int dirtyRatio = 10; // % of frames dirty to wake up
+
+   private final Cache cache;
+   private boolean woken;
+
+   public CacheFlusher( Cache cache ) {
+      this.cache = cache;
+      woken = false;
+      setDaemon( true );
+   }
+
+   // too many dirty blocks: write them all back now
+   public synchronized void wakeUp( ) {
+      woken = true;
+      notify( );
+   }
+
+   // waits for the next pass and tells whether it should write everything
+   private synchronized boolean waitPass( ) {
+      if ( !woken ) {
+         try {
+            wait( interval );
+         } catch ( InterruptedException e ) {
+         }
+      }
+      boolean all = woken;
+      woken = false;
+      return all;
+   }
+
+   public void run( ) {
+      while ( true ) {
+         boolean all = waitPass( ) ||
+            cache.dirtyBlocks( ) * 100 >= cache.getFrames( ) * dirtyRatio;
+         cache.writeBack( all ? Long.MAX_VALUE
+                              : System.currentTimeMillis( ) - maxAge );
+      }
+   }
+}
@@ -0,0 +1,36 @@
+/**
+ * CachePolicy
+ * the replacement policy of one Cache stripe.  The stripe tells its policy
+ * which frames are hit and which get a new block after a miss, and asks it
+ * which frame to reuse when no frame is free.  A frame is numbered from 0
+ * to the stripe's frame count - 1.  Calls come with the stripe locked.
+ */
+public interface CachePolicy {
+
+   // Tells whether a frame may be chosen as a victim: not when its page is
+   // in the middle of a disk transfer, nor when it is dirty and waiting for
+   // the flusher.
+   interface Frames {
+      boolean canEvict( int frame );
+   }
+
+   // frame, holding the block looked for, was hit
+   void hit( int frame );
+
+   // frame now holds blockId, which missed
+   void insert( int frame, int blockId );
+
+   // frame no longer holds a block, and is not to be chosen as a victim
+   // until a block is inserted into it again
+   void remove( int frame );
+
+   // the frame to reuse for blockId, which missed, or IntMap.NONE if no
+   // frame can be evicted
+   int victim( int blockId, Frames frames );
+
+   // every frame is empty again
+   void clear( );
+
+   // the name given at boot, e.g. "clock"
+   String getName( );
+}
@@ -0,0 +1,52 @@
+/**
+ * ClockPolicy
+ * second chance: the hand sweeps the frames in order, clearing the
+ * reference bit of each frame used since it last passed, and stops at the
+ * first frame that was not.  Cheap, but a scan through more blocks than
+ * the cache holds pushes out everything else.
+ */
+public class ClockPolicy implements CachePolicy {
+   private boolean reference[];
+   private int hand;
+
+   public ClockPolicy( int frames ) {
+      reference = new boolean[frames];
+      clear( );
+   }
+
+   public void hit( int frame ) {
+      reference[frame] = true;
+   }
+
+   public void insert( int frame, int blockId ) {
+      reference[frame] = true;
+   }
+
+   public void remove( int frame ) {
+      reference[frame] = false;
+   }
+
+   public int victim( int blockId, Frames frames ) {
+      int passed = 0;
+      while ( true ) {
+         hand = ( hand + 1 ) % reference.length;
+         if ( !frames.canEvict( hand ) ) {
+            if ( ++passed > reference.length )
+               return IntMap.NONE;
+            continue;
+         }
+         if ( reference[hand] == false )
+            return hand;
+         reference[hand] = false; // a second chance
+      }
+   }
+
+   public void clear( ) {
+      java.util.Arrays.fill( reference, false );
+      hand = reference.length - 1;
+   }
+
+   public String getName( ) {
+      return "clock";
+   }
+}
@@ -4,8 +4,20 @@
  * file names.  REceives a maximum number of files to be created and keeps
  * track of which inode numbers are in use.  Covers witeback to Disk on close
  *
+ * Names are looked up through a hash index from name to inode number, so
+ * namei costs the same with thousands of files as with ten, finds out as
+ * quickly that a name is missing, and allocates nothing.  The index is a
+ * ConcurrentHashMap: ialloc and ifree, which are synchronized, add or
+ * remove just their own name, and namei reads it without a lock.  Only
+ * loading the directory from disk builds a new index, published through
+ * a volatile field.  A BitSet of the free inode numbers saves ialloc its
+ * scan.
+ *
  * @since    6/5/2014 
  */
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class Directory {
 
     private static int maxChars = 30; // max characters of each file name
@@ -14,6 +26,10 @@ public class Directory {
     private int fsizes[];        // each element stores a different file size.
     private char fnames[][];    // each element stores a different file name.
 
+    private String names[];      // fnames as strings, null for a free entry
+    private BitSet free;         // inode numbers not in use
+    private volatile ConcurrentHashMap<String, Short> index; // name -> inode #
+
     /**
      * constructor
      * initiate the directory structure
@@ -31,6 +47,34 @@ public class Directory {
         String root = "/";                // entry(inode) 0 is "/"
         fsizes[0] = root.length( );        // fsize[0] is the size of "/".
         root.getChars( 0, fsizes[0], fnames[0], 0 ); // fnames[0] includes "/"
+
+        names = new String[maxInumber];
+        free = new BitSet( maxInumber );
+        reindex( );
+    }
+
+    /**
+     * reindex
+     * rebuild the names and the free inode numbers from fsizes and fnames,
+     * and publish a new index of them
+     * 
+     */
+    private void reindex( ) {
+        ConcurrentHashMap<String, Short> names2inumbers =
+            new ConcurrentHashMap<String, Short>( fsizes.length );
+        free.clear( );
+        for ( int i = 0; i < fsizes.length; i++ ) {
+            if ( fsizes[i] > 0 ) {
+                names[i] = new String( fnames[i], 0, fsizes[i] );
+                // the first entry of a name wins, as a scan would find it
+                names2inumbers.putIfAbsent( names[i], (short)i );
+            } else {
+                names[i] = null;
+                if ( i > 0 )              // entry 0 is kept for "/"
+                    free.set( i );
+            }
+        }
+        index = names2inumbers;
     }
 
     /**
@@ -40,7 +84,7 @@ public class Directory {
      * @param data the bytes array from disk
      * 
      */
-    public void bytes2directory( byte data[] ) {
+    public synchronized void bytes2directory( byte data[] ) {
         // assumes data[] received directory information from disk
         // initializes the Directory instance with this data[]
         // return -1 if invalid data, 0 otherwise
@@ -66,6 +110,8 @@ public class Directory {
             // copy file name to the corresponding array index
             currentFileName.getChars( 0, fsizes[i], fnames[i], 0 );
         }
+
+        reindex( );
     }
 
     /**
@@ -73,7 +119,7 @@ public class Directory {
      * convert directory information to byte array
      * 
      */
-    public byte[] directory2bytes( ) {
+    public synchronized byte[] directory2bytes( ) {
         // converts and return Directory information into a plain byte array
         // this byte array will be written back to disk
         // note: only meaningful directory information should be converted
@@ -114,7 +160,7 @@ public class Directory {
      * @param filename the file to allocate the inode
      * 
      */
-    public short ialloc( String filename ) {
+    public synchronized short ialloc( String filename ) {
         // filename is the one of a file to be created.
         // allocates a new inode number for this filename
         // return -1 if invalid data or unable to allocate, 0 otherwise
@@ -123,22 +169,20 @@ public class Directory {
         if ( ( filename == null ) || ( filename.equals( "" ) ) )
             return -1;
 
-        // search sequentially for an empty fsize
-        for ( int i = 0; i < fsizes.length; i++ ) {
-            if ( i == 0 ) // fsize[0] is for root
-                continue;
-
-            if ( fsizes[i] == 0 ) { // empty slot
-                // set the file size, max is 30 chars
-                fsizes[i] = ( filename.length( ) > maxChars )? maxChars :
-                        filename.length( );
-                // set the file name
-                filename.getChars( 0, fsizes[i], fnames[i], 0 );
-                return (short)i; // break out of loop and return
-            }
-        }
-
-        return -1; // unable to allocate
+        // take the lowest free inode number, fsize[0] being for root
+        int i = free.nextSetBit( 1 );
+        if ( i < 0 )
+            return -1; // unable to allocate
+
+        // set the file size, max is 30 chars
+        fsizes[i] = ( filename.length( ) > maxChars )? maxChars :
+                filename.length( );
+        // set the file name
+        filename.getChars( 0, fsizes[i], fnames[i], 0 );
+        names[i] = filename.substring( 0, fsizes[i] );
+        free.clear( i );
+        index.putIfAbsent( names[i], (short)i );
+        return (short)i;
     }
 
     /**
@@ -148,7 +192,7 @@ public class Directory {
      * @param iNumber the file to delete
      * 
      */
-    public boolean ifree( short iNumber ) {
+    public synchronized boolean ifree( short iNumber ) {
         // deallocates this inumber (inode number)
         // the corresponding file will be deleted.
 
@@ -158,6 +202,11 @@ public class Directory {
 
         // reset file size to 0
         fsizes[iNumber] = 0;
+        if ( names[iNumber] != null )
+            index.remove( names[iNumber], iNumber );
+        names[iNumber] = null;
+        if ( iNumber > 0 )
+            free.set( iNumber );
 
         return true;
     }
@@ -177,15 +226,9 @@ public class Directory {
         if ( ( filename == null ) || ( filename.equals( "" ) ) )
             return -1;
 
-        // perform sequential search
-        for ( int i = 0; i < fsizes.length; i++ ) {
-            // get the corresponding filename
-            String currentFileName = new String( fnames[i], 0, fsizes[i] );
-            if ( filename.equals( currentFileName ) ) { // compare string
-                return (short)i; // break out of loop and return
-            }
-        }
-
-        return -1; // no corresponding file name found
+        // look the name up in the current index, without a lock; -1 if
+        // no corresponding file name found
+        Short iNumber = index.get( filename );
+        return ( iNumber != null ) ? iNumber : -1;
     }
 }
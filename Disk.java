@@ -1,165 +1,276 @@
-import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
-public class Disk extends Thread {
+public class Disk extends Thread implements BlockDevice {
    public static final int blockSize = 512;
    private final int trackSize = 10;
-   private final int transferTime = 20;
-   private final int delayPerTrack = 1;
+   private final int maxRequests = 64;
    private int diskSize;
 
-   private byte data[];
+   private DiskImage image;
+   private DiskModel model;     // how long each request takes
+   private DiskFlusher flusher; // writes SYNC snapshots to the host file
+   private DiskStats stats;
 
-   private int command;
-   private final int IDLE = 0;
-   private final int READ = 1;
-   private final int WRITE = 2;
-   private final int SYNC = 3;
-   private boolean readyBuffer;
+   // Requests waiting for the disk.  READs and WRITEs are kept in track
+   // order and served in one direction (C-LOOK).  A SYNC is a barrier:
+   // everything that arrives behind it is held until it has been served.
+   private TreeSet<DiskRequest> pending;
+   private Vector<DiskRequest> held;
+   private DiskRequest barrier;
+   private long nextSeq;
 
-   private byte[] buffer;
    private int currentBlockId;
    private int targetBlockId;
 
+   // The track buffer.  A READ that continues where the previous one ended
+   // and misses the buffer reads the rest of its track along with it;
+   // later READs inside the buffer are served without a seek.
+   private byte trackBuffer[];
+   private int bufferedFrom;    // the first buffered block
+   private int bufferedTo;      // one past the last, bufferedFrom if empty
+   private int nextSequential;  // where a sequential READ would start
+
    public Disk( int totalBlocks ) {
+      this( totalBlocks, "DISK", "heap", "hdd" );
+   }
+
+   public Disk( int totalBlocks, String fileName, String imageType,
+                String modelType ) {
+      this( totalBlocks, fileName, imageType, modelType, false );
+   }
+
+   // fileName is the host file behind this disk
+   // imageType selects the DiskImage: "heap", "mmap" or "sparse"
+   // modelType selects the DiskModel: "hdd", "ssd" or "zero"
+   // lazy loads the image on demand instead of before returning
+   public Disk( int totalBlocks, String fileName, String imageType,
+                String modelType, boolean lazy ) {
       diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-      data = new byte[ diskSize * blockSize ];
-      command = IDLE;
-      readyBuffer = false;
-      buffer = null;
+      image = DiskImage.create( imageType, fileName, diskSize, lazy );
+      model = createModel( modelType );
+      flusher = new DiskFlusher( );
+      stats = new DiskStats( diskSize );
+      pending = new TreeSet<DiskRequest>( );
+      held = new Vector<DiskRequest>( );
+      barrier = null;
+      nextSeq = 0;
       currentBlockId = 0;
       targetBlockId = 0;
-      try {
-         FileInputStream ifstream = new FileInputStream( "DISK" );
-         int readableSize = ( ifstream.available( ) < data.length ) ?
-            ifstream.available( ) : data.length; 
-         ifstream.read( data, 0, readableSize );
-         ifstream.close( );
-      } catch ( FileNotFoundException e ) {
-         SysLib.cerr( "threadOS: DISK created\n" );
-      } catch ( IOException e ) {
-         SysLib.cerr( e.toString( ) + "\n" );
-      }
+      trackBuffer = new byte[trackSize * blockSize];
+      bufferedFrom = bufferedTo = 0;
+      nextSequential = -1;
    }
 
-   public synchronized boolean read( int blockId, byte buffer[] ) {
-
-      if ( blockId < 0 || blockId > diskSize ) {
-         SysLib.cerr( "threadOS: a wrong blockId for read\n" );
-         return false;
-      }
+   // queue a read of blockId into buffer, or return null if the queue is full
+   public synchronized DiskRequest read( int blockId, byte buffer[] ) {
+      return enqueue( DiskRequest.READ, blockId, 1, buffer );
+   }
 
-      if ( command == IDLE && readyBuffer == false ) {
-         this.buffer = buffer;
-         targetBlockId = blockId;
-         command = READ;
-         notify( );
-         return true;
-      } else
-         return false;
+   // queue a write of buffer to blockId, or return null if the queue is full
+   public synchronized DiskRequest write( int blockId, byte buffer[] ) {
+      return enqueue( DiskRequest.WRITE, blockId, 1, buffer );
    }
 
-   public synchronized boolean write( int blockId, byte buffer[] ) {
+   // queue a read of buffer.length / blockSize blocks starting at blockId
+   public synchronized DiskRequest readv( int blockId, byte buffer[] ) {
+      return enqueue( DiskRequest.READ, blockId, buffer.length / blockSize,
+                      buffer );
+   }
 
-      if ( blockId < 0 || blockId > diskSize ) {
-         SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-         return false;
-      }
+   // queue a write of buffer.length / blockSize blocks starting at blockId
+   public synchronized DiskRequest writev( int blockId, byte buffer[] ) {
+      return enqueue( DiskRequest.WRITE, blockId, buffer.length / blockSize,
+                      buffer );
+   }
 
-      if ( command == IDLE && readyBuffer == false ) {
-         this.buffer = buffer;
-         targetBlockId = blockId;
-         command = WRITE;
-         notify( );
-         return true;
-      } else
-         return false;
+   // queue a sync behind every request accepted so far
+   public synchronized DiskRequest sync( ) {
+      return enqueue( newRequest( DiskRequest.SYNC, 0, 0, null ) );
    }
 
-   public synchronized boolean sync( ) {
+   // whether one more request would be accepted
+   public synchronized boolean hasRoom( ) {
+      return pending.size( ) + held.size( ) < maxRequests;
+   }
 
-      if ( command == IDLE && readyBuffer == false ) {
-         command = SYNC;
-         notify( );
-         // System.out.println( "DISK sync notified the disk" );
-         return true;
-      } else
-         return false;
+   private DiskRequest newRequest( int command, int blockId, int count,
+                                   byte buffer[] ) {
+      return new DiskRequest( command, blockId, count, buffer,
+                              blockId / trackSize, nextSeq++ );
    }
 
-   public synchronized boolean testAndResetReady( ) {
-      if ( command == IDLE && readyBuffer == true ) {
-         readyBuffer = false;
-         return true;
-      } else
-         return false;
+   private DiskRequest enqueue( int command, int blockId, int count,
+                                byte buffer[] ) {
+      DiskRequest request = newRequest( command, blockId, count, buffer );
+      if ( blockId < 0 || count < 1 || blockId + count > diskSize ||
+           buffer.length < count * blockSize ) {
+         SysLib.cerr( "threadOS: a wrong blockId for " +
+                      ( command == DiskRequest.READ ? "read\n" : "write\n" ) );
+         request.fail( );
+         return request;
+      }
+      return enqueue( request );
    }
 
-   public synchronized boolean testReady( ) {
-      if ( command == IDLE && readyBuffer == true ) {
-         return true;
-      } else
-         return false;
+   private DiskRequest enqueue( DiskRequest request ) {
+      if ( !hasRoom( ) )
+         return null;
+      stats.accepted( pending.size( ) + held.size( ) );
+      if ( barrier != null )
+         held.addElement( request );
+      else if ( request.command == DiskRequest.SYNC )
+         barrier = request;
+      else
+         pending.add( request );
+      notify( );
+      return request;
    }
 
-   private synchronized void waitCommand( ) {
-      while ( command == IDLE ) {
+   private synchronized DiskRequest waitRequest( ) {
+      while ( pending.isEmpty( ) && barrier == null ) {
          try {
             wait( );
          } catch ( InterruptedException e ) {
             SysLib.cerr( e.toString( ) + "\n" );
          }
-         readyBuffer = false;
       }
+      if ( !pending.isEmpty( ) ) {
+         // the first request at or beyond the head's track, else wrap
+         // around to the lowest track
+         DiskRequest head = new DiskRequest( DiskRequest.READ,
+               currentBlockId, 1, null, currentBlockId / trackSize, -1 );
+         DiskRequest next = pending.ceiling( head );
+         if ( next == null )
+            next = pending.first( );
+         pending.remove( next );
+         return next;
+      }
+
+      // everything ahead of the barrier has been served: serve the SYNC
+      // and let the held requests into the elevator up to the next SYNC
+      DiskRequest next = barrier;
+      barrier = null;
+      while ( barrier == null && !held.isEmpty( ) ) {
+         DiskRequest request = held.remove( 0 );
+         if ( request.command == DiskRequest.SYNC )
+            barrier = request;
+         else
+            pending.add( request );
+      }
+      return next;
    }
 
-   private void seek( ) {
-      int seekTime = transferTime + delayPerTrack 
-         * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
-      try {
-         Thread.sleep( seekTime );
-      } catch( InterruptedException e ) {
-         SysLib.cerr( e.toString( ) + "\n" );
+   private DiskModel createModel( String type ) {
+      if ( type.equals( "ssd" ) )
+         return new SsdModel( );
+      if ( type.equals( "zero" ) )
+         return new ZeroLatencyModel( );
+      if ( !type.equals( "hdd" ) )
+         SysLib.cerr( "threadOS: unknown disk model " + type +
+                      ", using hdd\n" );
+      return new HddModel( trackSize );
+   }
+
+   public DiskModel getModel( ) {
+      return model;
+   }
+
+   public void report( StringBuffer out ) {
+      out.append( "disk " + image.fileName + ", " + diskSize + " blocks, " +
+                  model.getName( ) + " model\n" );
+      stats.report( out );
+      out.append( "service time: " + model.getServiceTimes( ) );
+   }
+
+   public void resetStats( ) {
+      stats.reset( );
+      model.getServiceTimes( ).reset( );
+   }
+
+   // seek to targetBlockId and stream count blocks from there on, taking
+   // as long as the disk model says
+   private void seek( int count ) {
+      stats.seeked( targetBlockId / trackSize - currentBlockId / trackSize );
+      long serviceTime =
+         model.serviceTime( currentBlockId, targetBlockId, count );
+      long deadline = System.nanoTime( ) + serviceTime * 1000;
+      long left;
+      while ( ( left = deadline - System.nanoTime( ) ) > 0 )
+         LockSupport.parkNanos( left );
+      currentBlockId = targetBlockId + count - 1;
+   }
+
+   // whether blockId..blockId+count-1 are all in the track buffer
+   private boolean isBuffered( int blockId, int count ) {
+      return blockId >= bufferedFrom && blockId + count <= bufferedTo;
+   }
+
+   private void readBlocks( DiskRequest request ) {
+      int track = targetBlockId / trackSize;
+      int last = targetBlockId + request.count - 1;
+      if ( isBuffered( targetBlockId, request.count ) )
+         stats.bufferHit( );
+      else if ( targetBlockId == nextSequential && last / trackSize == track ) {
+         // sequential: read ahead to the end of the track
+         int end = Math.min( ( track + 1 ) * trackSize, diskSize );
+         seek( end - targetBlockId );
+         for ( int i = targetBlockId; i < end; i++ )
+            image.read( i, trackBuffer, ( i % trackSize ) * blockSize );
+         bufferedFrom = targetBlockId;
+         bufferedTo = end;
+      } else {
+         seek( request.count );
+         for ( int i = 0; i < request.count; i++ )
+            image.read( targetBlockId + i, request.buffer, i * blockSize );
+         nextSequential = last + 1;
+         return;
+      }
+      System.arraycopy( trackBuffer, ( targetBlockId % trackSize ) * blockSize,
+                        request.buffer, 0, request.count * blockSize );
+      nextSequential = last + 1;
+   }
+
+   private void writeBlocks( DiskRequest request ) {
+      seek( request.count );
+      for ( int i = 0; i < request.count; i++ ) {
+         int blockId = targetBlockId + i;
+         image.write( blockId, request.buffer, i * blockSize );
+         if ( isBuffered( blockId, 1 ) ) // keep the track buffer current
+            System.arraycopy( request.buffer, i * blockSize, trackBuffer,
+                              ( blockId % trackSize ) * blockSize,
+                              blockSize );
       }
-      currentBlockId = targetBlockId;
    }
 
-   private synchronized void finishCommand( ) {
-      command = IDLE;
-      readyBuffer = true;
-      SysLib.disk( ); // a disk interrupt
+   private void finishCommand( DiskRequest request ) {
+      SysLib.disk( request ); // a disk interrupt
    }
 
    public void run ( ) {
+      flusher.start( );
 
       while ( true ) {
-         waitCommand( );
-         seek( );
-         // System.out.println( "Disk: command = " + command );
-         switch( command ) {
-            case READ:
-               System.arraycopy( data, targetBlockId * blockSize, 
-                     buffer, 0, 
-                     blockSize );
-               break;
-            case WRITE:
-               System.arraycopy( buffer, 0, 
-                     data, targetBlockId * blockSize, 
-                     blockSize );
+         DiskRequest request = waitRequest( );
+         stats.started( request,
+                        ( System.nanoTime( ) - request.arrival ) / 1000 );
+         if ( request.command == DiskRequest.SYNC ) {
+            // only snapshot here; the flusher writes it out and finishes
+            // the SYNC while this thread serves the requests behind it
+            flusher.enqueue( image.snapshot( ), request );
+            continue;
+         }
+         targetBlockId = request.blockId;
+         // System.out.println( "Disk: command = " + request.command );
+         switch( request.command ) {
+            case DiskRequest.READ:
+               readBlocks( request );
                break;
-            case SYNC:
-               try {
-                  FileOutputStream ofstream = new FileOutputStream( "DISK" );
-                  ofstream.write( data );
-                  ofstream.close( );
-               } catch ( FileNotFoundException e ) {
-                  SysLib.cerr( e.toString( ) );
-               } catch ( IOException e ) {
-                  SysLib.cerr( e.toString( ) );
-               }
-               // SysLib.cerr( "threadOS: DISK synchronized\n" );
+            case DiskRequest.WRITE:
+               writeBlocks( request );
                break;
          }
-         finishCommand( );
+         finishCommand( request );
       }
    }
 }
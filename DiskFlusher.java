@@ -0,0 +1,51 @@
+import java.util.Vector;
+
+/**
+ * DiskFlusher
+ * writes DiskImage snapshots to the host file on behalf of a Disk, so that
+ * the disk thread goes on serving reads and writes during a SYNC.  The SYNC
+ * request is finished, with its disk interrupt, once its snapshot is
+ * persistent.
+ */
+public class DiskFlusher extends Thread {
+   private Vector<Runnable> jobs;
+   private Vector<DiskRequest> requests;
+
+   public DiskFlusher( ) {
+      jobs = new Vector<Runnable>( );
+      requests = new Vector<DiskRequest>( );
+   }
+
+   // flush snapshot in the background and then finish request
+   public synchronized void enqueue( Runnable snapshot,
+                                     DiskRequest request ) {
+      jobs.addElement( snapshot );
+      requests.addElement( request );
+      notify( );
+   }
+
+   private synchronized int waitJob( ) {
+      while ( jobs.isEmpty( ) ) {
+         try {
+            wait( );
+         } catch ( InterruptedException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+         }
+      }
+      return jobs.size( );
+   }
+
+   public void run( ) {
+      while ( true ) {
+         waitJob( );
+         Runnable snapshot;
+         DiskRequest request;
+         synchronized ( this ) {
+            snapshot = jobs.remove( 0 );
+            request = requests.remove( 0 );
+         }
+         snapshot.run( );
+         SysLib.disk( request ); // a disk interrupt
+      }
+   }
+}
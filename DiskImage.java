@@ -0,0 +1,229 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * DiskImage
+ * the storage behind a Disk.  A Disk thread hands every READ and WRITE to
+ * its image, which decides where the blocks really live, and asks it for a
+ * snapshot on SYNC.
+ *
+ * The default snapshot is copy-on-write: it only records which blocks are
+ * dirty, and a block is copied aside only if the disk overwrites it before
+ * the flusher has written it to the host file with a positional write.
+ * Images using it call beforeWrite( ) ahead of changing a block.
+ */
+public abstract class DiskImage {
+   protected final String fileName; // the host file, "DISK" by default
+   protected final int diskSize;     // # blocks in this image
+   protected FileChannel channel;    // the host file, for positional writes
+   private BitSet dirty;             // blocks written since the last snapshot
+   private Vector<Snapshot> active;  // snapshots still being flushed
+
+   // Lazy loading: the chunks not read from the host file yet, or null
+   // once every chunk is in memory
+   private volatile BitSet missing;
+   private int missingCount;
+   private int chunkBlocks;          // # blocks loaded at a time
+
+   protected DiskImage( String fileName, int diskSize ) {
+      this.fileName = fileName;
+      this.diskSize = diskSize;
+      dirty = new BitSet( );
+      active = new Vector<Snapshot>( );
+   }
+
+   // copy block blockId into buffer[offset..offset+blockSize)
+   public abstract void read( int blockId, byte buffer[], int offset );
+
+   // copy buffer[offset..offset+blockSize) into block blockId
+   public abstract void write( int blockId, byte buffer[], int offset );
+
+   // open the host file for the positional writes of snapshots; channel
+   // stays null if it cannot be, and snapshots then only report it
+   protected void openChannel( ) {
+      try {
+         channel = new RandomAccessFile( fileName, "rw" ).getChannel( );
+      } catch ( IOException e ) {
+         SysLib.cerr( e.toString( ) + "\n" );
+      }
+   }
+
+   // load the image from the host file on demand from now on: a chunk is
+   // read when one of its blocks is first used, and a warm-up thread reads
+   // the others in block, and so track, order meanwhile
+   protected void loadLazily( int chunks, int chunkBlocks ) {
+      this.chunkBlocks = chunkBlocks;
+      missingCount = chunks;
+      BitSet all = new BitSet( chunks );
+      all.set( 0, chunks );
+      missing = all;
+      Thread warmUp = new Thread( ) {
+         public void run( ) {
+            for ( int chunk = 0; missing != null; chunk++ ) {
+               loadChunk( chunk );
+               Thread.yield( ); // requests for other blocks go first
+            }
+         }
+      };
+      warmUp.setDaemon( true );
+      warmUp.setPriority( Thread.MIN_PRIORITY );
+      warmUp.start( );
+   }
+
+   // make sure blockId has been loaded; read and write call this first
+   protected final void fault( int blockId ) {
+      if ( missing != null )
+         loadChunk( blockId / chunkBlocks );
+   }
+
+   private synchronized void loadChunk( int chunk ) {
+      if ( missing == null || !missing.get( chunk ) )
+         return;
+      try {
+         load( chunk );
+      } catch ( IOException e ) {
+         SysLib.cerr( e.toString( ) + "\n" );
+      }
+      missing.clear( chunk );
+      if ( --missingCount == 0 )
+         missing = null;
+   }
+
+   // read blocks chunk * chunkBlocks on from the host file; images that
+   // call loadLazily( ) implement it
+   protected void load( int chunk ) throws IOException {
+   }
+
+   // write count blocks from blockId on to the host file; the default
+   // keeps block b at byte b * blockSize of a raw image
+   protected void store( int blockId, int count, byte run[] )
+      throws IOException {
+      channel.write( ByteBuffer.wrap( run ), ( long )blockId * Disk.blockSize );
+   }
+
+   // called once a snapshot's blocks have all been stored, before the
+   // host file is forced
+   protected void stored( ) throws IOException {
+   }
+
+   // keep the old contents of blockId for any snapshot that still needs
+   // them, and remember it for the next snapshot; call with the image locked
+   protected void beforeWrite( int blockId ) {
+      for ( int i = 0; i < active.size( ); i++ )
+         active.elementAt( i ).preserve( blockId );
+      dirty.set( blockId );
+   }
+
+   // capture every block written since the previous snapshot.  This runs
+   // on the disk thread and must be cheap; the returned job does the real
+   // work of making those blocks persistent and runs on a DiskFlusher while
+   // the disk keeps serving requests.
+   public synchronized Runnable snapshot( ) {
+      Snapshot snapshot = new Snapshot( dirty );
+      dirty = new BitSet( );
+      active.addElement( snapshot );
+      return snapshot;
+   }
+
+   // copy count blocks from blockId on, as of snapshot, into run
+   private synchronized void copy( Snapshot snapshot, int blockId, int count,
+                                   byte run[] ) {
+      for ( int i = 0; i < count; i++ ) {
+         byte old[] = snapshot.preserved.remove( blockId + i );
+         if ( old != null )
+            System.arraycopy( old, 0, run, i * Disk.blockSize,
+                              Disk.blockSize );
+         else
+            read( blockId + i, run, i * Disk.blockSize );
+         snapshot.unflushed.clear( blockId + i );
+      }
+   }
+
+   private synchronized void retire( Snapshot snapshot ) {
+      active.removeElement( snapshot );
+   }
+
+   private class Snapshot implements Runnable {
+      BitSet unflushed;  // blocks of this snapshot not yet copied out
+      HashMap<Integer, byte[]> preserved; // their contents at the snapshot
+
+      Snapshot( BitSet blocks ) {
+         unflushed = blocks;
+         preserved = new HashMap<Integer, byte[]>( );
+      }
+
+      // called with the image locked, before blockId is overwritten
+      void preserve( int blockId ) {
+         if ( unflushed.get( blockId ) && !preserved.containsKey( blockId ) ) {
+            byte old[] = new byte[Disk.blockSize];
+            read( blockId, old, 0 );
+            preserved.put( blockId, old );
+         }
+      }
+
+      // store each run of consecutive blocks with one call.  The snapshot
+      // is retired whatever happens, or every later write would go on
+      // preserving blocks for it
+      public void run( ) {
+         try {
+            if ( channel == null )
+               throw new IOException( fileName + " is not open" );
+            int first = unflushed.nextSetBit( 0 );
+            while ( first >= 0 ) {
+               int last = unflushed.nextClearBit( first );
+               byte run[] = new byte[( last - first ) * Disk.blockSize];
+               copy( this, first, last - first, run );
+               store( first, last - first, run );
+               first = unflushed.nextSetBit( last );
+            }
+            stored( );
+            channel.force( false );
+         } catch ( IOException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+         } finally {
+            retire( this );
+         }
+      }
+   }
+
+   /**
+    * create
+    * instantiate the image selected at boot
+    *
+    * @param type "heap" (default), "mmap" or "sparse"; a disk of 2GB or
+    *             more, or a packed host file, is always sparse
+    * @param fileName the host file
+    * @param diskSize the number of blocks
+    * @param lazy load blocks on first use instead of at boot; a mapped
+    *             image always does
+    */
+   public static DiskImage create( String type, String fileName,
+                                   int diskSize, boolean lazy ) {
+      if ( type.equals( "sparse" ) || SparseDiskImage.isPacked( fileName ) ) {
+         if ( !type.equals( "sparse" ) )
+            SysLib.cerr( "threadOS: " + fileName +
+                         " is packed, using sparse\n" );
+         return new SparseDiskImage( fileName, diskSize, lazy );
+      }
+      // a heap array and a mapping both hold at most 2GB
+      if ( ( long )diskSize * Disk.blockSize > Integer.MAX_VALUE ) {
+         SysLib.cerr( "threadOS: " + diskSize + " blocks are too many for " +
+                      "disk=" + type + ", using sparse\n" );
+         return new SparseDiskImage( fileName, diskSize, lazy );
+      }
+      if ( type.equals( "mmap" ) ) {
+         try {
+            return new MappedDiskImage( fileName, diskSize );
+         } catch ( IOException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+            SysLib.cerr( "threadOS: " + fileName +
+                         " not mapped, using heap\n" );
+         }
+      } else if ( !type.equals( "heap" ) )
+         SysLib.cerr( "threadOS: unknown disk image " + type +
+                      ", using heap\n" );
+      return new HeapDiskImage( fileName, diskSize, lazy );
+   }
+}
@@ -0,0 +1,19 @@
+/**
+ * DiskModel
+ * the latency of a Disk.  The disk thread asks its model how long each
+ * request takes and stalls for that long, so one kernel can be run against
+ * different device classes.  Every model records the service time of each
+ * request it has priced.
+ */
+public interface DiskModel {
+
+   // microseconds to serve count blocks from blockId on with the head
+   // currently at headBlockId
+   long serviceTime( int headBlockId, int blockId, int count );
+
+   // the service times of all requests priced so far
+   Histogram getServiceTimes( );
+
+   // the name given at boot, e.g. "hdd"
+   String getName( );
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * DiskRequest
+ * one command queued at a Disk.  The thread that issued it sleeps on the
+ * request itself, and the disk interrupt raised when the command has been
+ * served wakes up exactly that thread.  An asynchronous request instead
+ * carries a future that the same interrupt completes.
+ */
+public class DiskRequest implements Comparable<DiskRequest> {
+   public static final int READ = 1;
+   public static final int WRITE = 2;
+   public static final int SYNC = 3;
+
+   public final int command;
+   public final int blockId;  // the first block
+   public final int count;    // # consecutive blocks from blockId
+   public final byte buffer[];
+   final int track;           // the track of blockId, the elevator's key
+   final long seq;            // arrival order at the disk
+   final long arrival;        // System.nanoTime( ) when it was issued
+   private int status;        // Kernel.OK or Kernel.ERROR
+   private boolean done;
+   private CompletableFuture<Integer> future; // for an asynchronous request
+
+   DiskRequest( int command, int blockId, int count, byte buffer[],
+                int track, long seq ) {
+      this.command = command;
+      this.blockId = blockId;
+      this.count = count;
+      this.buffer = buffer;
+      this.track = track;
+      this.seq = seq;
+      arrival = System.nanoTime( );
+      status = Kernel.OK;
+      done = false;
+   }
+
+   // requests are served in track order, and in arrival order on a track
+   public int compareTo( DiskRequest other ) {
+      if ( track != other.track )
+         return ( track < other.track ) ? -1 : 1;
+      if ( seq != other.seq )
+         return ( seq < other.seq ) ? -1 : 1;
+      return 0;
+   }
+
+   // called from the disk interrupt once the command has been served
+   public void finish( ) {
+      CompletableFuture<Integer> waiting;
+      synchronized ( this ) {
+         done = true;
+         notifyAll( );
+         waiting = future;
+      }
+      if ( waiting != null )
+         waiting.complete( status );
+   }
+
+   // finish a request the disk refused to serve, e.g. a wrong blockId
+   void fail( ) {
+      markFailed( );
+      finish( );
+   }
+
+   // let the request finish with Kernel.ERROR
+   synchronized void markFailed( ) {
+      status = Kernel.ERROR;
+   }
+
+   // complete future with this request's status once it has been served
+   public void attach( CompletableFuture<Integer> future ) {
+      boolean finished;
+      synchronized ( this ) {
+         this.future = future;
+         finished = done;
+      }
+      if ( finished )
+         future.complete( status );
+   }
+
+   public synchronized boolean isDone( ) {
+      return done;
+   }
+
+   // sleep until the disk interrupt for this request, and return its status
+   public synchronized int waitFor( ) {
+      while ( !done ) {
+         try {
+            wait( );
+         } catch ( InterruptedException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+         }
+      }
+      return status;
+   }
+}
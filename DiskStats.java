@@ -0,0 +1,96 @@
+import java.util.*;
+
+/**
+ * DiskStats
+ * what one Disk has been doing: requests and blocks per command, how far
+ * each request made the head seek, how deep the queue was when requests
+ * arrived and how long they sat in it, and how often each block was
+ * accessed.  The service times themselves are kept by the DiskModel.
+ *
+ * Heat is counted per run of heatBlocks blocks so that a multi-GB disk
+ * needs no more than maxHeatCounters counters.
+ */
+public class DiskStats {
+   private static final int maxHeatCounters = 65536;
+   private static final int hottest = 10; // runs listed by report( )
+
+   private final int heatBlocks;   // blocks per heat counter
+   private long requests[];        // by command: READ, WRITE, SYNC
+   private long blocks[];          // blocks moved, by command
+   private long bufferHits;        // READs served from the track buffer
+   private Histogram seekDistance;
+   private Histogram queueDepth;
+   private Histogram queueTime;
+   private int heat[];
+
+   public DiskStats( int diskSize ) {
+      heatBlocks = ( diskSize + maxHeatCounters - 1 ) / maxHeatCounters;
+      heat = new int[( diskSize + heatBlocks - 1 ) / heatBlocks];
+      reset( );
+   }
+
+   public synchronized void reset( ) {
+      requests = new long[DiskRequest.SYNC + 1];
+      blocks = new long[DiskRequest.SYNC + 1];
+      bufferHits = 0;
+      seekDistance = new Histogram( "tracks" );
+      queueDepth = new Histogram( "requests" );
+      queueTime = new Histogram( "us" );
+      Arrays.fill( heat, 0 );
+   }
+
+   // a request was accepted while depth others were waiting
+   public synchronized void accepted( int depth ) {
+      queueDepth.record( depth );
+   }
+
+   // the disk picked request up, waitTime us after accepting it
+   public synchronized void started( DiskRequest request, long waitTime ) {
+      requests[request.command]++;
+      blocks[request.command] += request.count;
+      queueTime.record( waitTime );
+      for ( int i = 0; i < request.count; i++ )
+         heat[( request.blockId + i ) / heatBlocks]++;
+   }
+
+   // the head moved across tracks tracks
+   public synchronized void seeked( int tracks ) {
+      seekDistance.record( Math.abs( tracks ) );
+   }
+
+   public synchronized void bufferHit( ) {
+      bufferHits++;
+   }
+
+   public synchronized void report( StringBuffer out ) {
+      out.append( "requests: read=" + requests[DiskRequest.READ] +
+                  " (" + blocks[DiskRequest.READ] + " blocks, " +
+                  bufferHits + " from the track buffer) write=" +
+                  requests[DiskRequest.WRITE] + " (" +
+                  blocks[DiskRequest.WRITE] + " blocks) sync=" +
+                  requests[DiskRequest.SYNC] + "\n" );
+      out.append( "seek distance: " + seekDistance );
+      out.append( "queue depth at arrival: " + queueDepth );
+      out.append( "queue time: " + queueTime );
+
+      // the hottest runs, most accessed first
+      Integer runs[] = new Integer[heat.length];
+      for ( int i = 0; i < runs.length; i++ )
+         runs[i] = i;
+      Arrays.sort( runs, new Comparator<Integer>( ) {
+         public int compare( Integer a, Integer b ) {
+            return Integer.compare( heat[b], heat[a] );
+         }
+      } );
+      out.append( "hottest blocks:\n" );
+      for ( int i = 0; i < hottest && i < runs.length; i++ ) {
+         int run = runs[i];
+         if ( heat[run] == 0 )
+            break;
+         int first = run * heatBlocks;
+         out.append( "  " + ( heatBlocks == 1 ? "" + first :
+                              first + "-" + ( first + heatBlocks - 1 ) ) +
+                     ": " + heat[run] + "\n" );
+      }
+   }
+}
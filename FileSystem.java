@@ -11,6 +11,9 @@ public class FileSystem {
     private final int SEEK_CUR = 1;
     private final int SEEK_END = 2;
 
+    // file blocks read ahead of a reader advised to be sequential
+    private final int READ_AHEAD = 32;
+
     private SuperBlock superblock;
     private Directory directory;
     private FileTable filetable;
@@ -56,8 +59,12 @@ public class FileSystem {
         //write into root
         write(rootDir, temp);
         close(rootDir);
+        //save the inodes of files still open
+        filetable.sync();
         //sync superblock to write to disk
         superblock.sync();
+        //and whatever the buffer cache still holds
+        Volume.flush();
     }
 
     /**
@@ -68,8 +75,40 @@ public class FileSystem {
      * 
      */ 
     boolean format(int files) {
+        return format(files, Disk.blockSize);
+    }
+
+    /**
+     * format
+     * return a clean file system with blocks of the given size
+     * 
+     * @param files the number of files for the system
+     * @param blockSize bytes per block, a power of two from 512 to 4096
+     * 
+     */ 
+    boolean format(int files, int blockSize) {
+        return format(files, blockSize, 0);
+    }
+
+    /**
+     * format
+     * return a clean file system with blocks of the given size, written in
+     * the given on-disk format revision
+     * 
+     * @param files the number of files for the system
+     * @param blockSize bytes per block, a power of two from 512 to 4096
+     * @param revision Volume.shortPointers, Volume.intPointers,
+     *                 Volume.extents, or 0 to use 32-bit pointers only if
+     *                 the volume needs them
+     * 
+     */ 
+    boolean format(int files, int blockSize, int revision) {
+        if (!Volume.isBlockSize(blockSize)
+            || (revision != 0 && !Volume.isRevision(revision))) {
+            return false;
+        }
         //superblock formats
-        superblock.format(files);
+        superblock.format(files, blockSize, revision);
         //create a new directory
         directory = new Directory(superblock.totalInodes);
         //create new file table
@@ -88,8 +127,12 @@ public class FileSystem {
     FileTableEntry open(String filename, String mode) {
         FileTableEntry fte = filetable.falloc(filename, mode);
         if (mode.equals("w")) {
-            if (!deallocAllBlocks(fte)) {
-                return null;
+            //Other entries may have the file open: truncate it under the
+            //inode's lock
+            synchronized (fte.inode) {
+                if (!deallocAllBlocks(fte)) {
+                    return null;
+                }
             }
         }
         return fte;
@@ -125,7 +168,7 @@ public class FileSystem {
      * 
      */   
     int fsize(FileTableEntry ftEnt) {
-        synchronized (ftEnt) {
+        synchronized (ftEnt.inode) {
             return ftEnt.inode.length;
         }
     }
@@ -146,8 +189,12 @@ public class FileSystem {
 
         int bytesRead = 0;
         int fileSize = fsize(ftEnt);
+        int blockSize = Volume.blockSize;
 
-        synchronized (ftEnt) {
+        //Entries opening the same file share its inode, whose monitor
+        //guards it and the seek pointers of those entries
+        synchronized (ftEnt.inode) {
+            int start = ftEnt.seekPtr;
             //Added check for bytes read is less than buffer length for appending
             while(ftEnt.seekPtr < fileSize && bytesRead < buffer.length) {
                 //Get block to read from
@@ -157,18 +204,24 @@ public class FileSystem {
                     break;
                 }
 
-                //Array to store block data and read
-                byte[] blockData = new byte[512];
-                SysLib.rawread(targetBlock,blockData);
-
+                //Bytes still wanted by this read, from the seek index on
+                int wanted = Math.min(fileSize - ftEnt.seekPtr,
+                                      buffer.length - bytesRead);
+                int blocks = (ftEnt.seekPtr % blockSize + wanted
+                              + blockSize - 1) / blockSize;
+                //Blocks of the file that follow on disk are read together
+                int run = ftEnt.inode.contiguousBlocks(ftEnt.seekPtr, blocks);
 
+                //Array to store block data and read the run in one command
+                byte[] blockData = new byte[run * blockSize];
+                Volume.read(targetBlock,blockData);
 
                 //Determine how many bytes were read based on the seek index
-                int currentRead = 512 - (ftEnt.seekPtr % 512);
+                int currentRead = run * blockSize - (ftEnt.seekPtr % blockSize);
                 //Calculate if there are bytes remaining
                 int remainingBytesToRead = fileSize - ftEnt.seekPtr;
                 //Move the seek to the minimum of the number read or remaining
-                //If read was 512 than remaining must be larger
+                //If read was a whole run than remaining must be larger
                 int seekIncrease = Math.min(currentRead,remainingBytesToRead);
 
                 //SysLib.cout("Bytes Read: " + bytesRead + " and Pointer at: " + ftEnt.seekPtr + " and file size: " + fileSize + " and Buffer size: " + buffer.length +  "\n");
@@ -180,7 +233,7 @@ public class FileSystem {
                 }
 
                 //copy into buffer
-                System.arraycopy(blockData,ftEnt.seekPtr % 512,buffer,bytesRead,seekIncrease);
+                System.arraycopy(blockData,ftEnt.seekPtr % blockSize,buffer,bytesRead,seekIncrease);
                 //SysLib.cout("Increase seek by: " + seekIncrease + "\n");
 
                 //Increase seek index for next loop
@@ -188,10 +241,110 @@ public class FileSystem {
                 //Increase bytesRead for next loop to start copying into buffer
                 bytesRead += seekIncrease;
             }
+
+            //A sequential reader uses each block once: drop the blocks it
+            //has read past from the cache and keep reading ahead of it
+            if (ftEnt.advice == Kernel.ADVISE_SEQUENTIAL && bytesRead > 0) {
+                adviseBlocks(ftEnt.inode, start,
+                             ftEnt.seekPtr / blockSize * blockSize,
+                             Kernel.ADVISE_DONTNEED);
+                readAhead(ftEnt, fileSize);
+            }
         }
         return bytesRead;
     }
 
+    /**
+     * readAhead
+     * start reading the next READ_AHEAD blocks of a sequential reader into
+     * the cache, topping the window up once half of it has been read
+     * 
+     * @param ftEnt the file table entry, locked by the caller
+     * @param fileSize the size of the file
+     * 
+     */
+    private void readAhead(FileTableEntry ftEnt, int fileSize) {
+        int window = READ_AHEAD * Volume.blockSize;
+        // after a seek the window starts over where the reader is
+        if (ftEnt.readAhead < ftEnt.seekPtr
+                || ftEnt.readAhead > ftEnt.seekPtr + window) {
+            ftEnt.readAhead = ftEnt.seekPtr;
+        }
+        if (ftEnt.readAhead - ftEnt.seekPtr <= window / 2
+                && ftEnt.readAhead < fileSize) {
+            int end = Math.min(ftEnt.seekPtr + window, fileSize);
+            adviseBlocks(ftEnt.inode, ftEnt.readAhead, end,
+                         Kernel.ADVISE_WILLNEED);
+            ftEnt.readAhead = end;
+        }
+    }
+
+    /**
+     * fadvise
+     * take a hint on how a file will be read.  ADVISE_WILLNEED reads the
+     * given bytes into the cache in the background and ADVISE_DONTNEED
+     * drops them from it; ADVISE_SEQUENTIAL has every later read through
+     * ftEnt read ahead and drop what it has read, until ADVISE_NORMAL or
+     * ADVISE_RANDOM turns that off.  Only a kernel booted with fscache=on
+     * has a cache for the hints to act on.
+     * 
+     * @param ftEnt the file table entry
+     * @param offset the first byte the hint is about
+     * @param length the number of bytes, 0 for all from offset on
+     * @param advice one of the Kernel.ADVISE_ hints
+     * 
+     */
+    boolean fadvise(FileTableEntry ftEnt, int offset, int length,
+                    int advice) {
+        if (offset < 0 || length < 0 || advice < Kernel.ADVISE_NORMAL
+                || advice > Kernel.ADVISE_DONTNEED) {
+            return false;
+        }
+
+        synchronized (ftEnt.inode) {
+            if (advice == Kernel.ADVISE_WILLNEED
+                    || advice == Kernel.ADVISE_DONTNEED) {
+                int fileSize = ftEnt.inode.length;
+                int end = (length == 0) ? fileSize
+                        : (int) Math.min((long) offset + length, fileSize);
+                adviseBlocks(ftEnt.inode, offset, end, advice);
+            } else {
+                ftEnt.advice = advice;
+                ftEnt.readAhead = ftEnt.seekPtr;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * adviseBlocks
+     * pass a hint for the blocks holding the bytes from to to - 1 of a file
+     * to the cache, a run of blocks consecutive on disk at a time
+     * 
+     * @param inode the file's inode
+     * @param from the first byte
+     * @param to the byte after the last
+     * @param advice Kernel.ADVISE_WILLNEED or Kernel.ADVISE_DONTNEED
+     * 
+     */
+    private void adviseBlocks(Inode inode, int from, int to, int advice) {
+        if (Volume.cache == null) {
+            return;
+        }
+        int blockSize = Volume.blockSize;
+        int offset = from / blockSize * blockSize;
+        while (offset < to) {
+            int target = inode.findTargetBlock(offset);
+            int run = 1; // a hole is skipped
+            if (target >= 0) {
+                int blocks = (to - offset + blockSize - 1) / blockSize;
+                run = inode.contiguousBlocks(offset, blocks);
+                Volume.advise(target, run, advice);
+            }
+            offset += run * blockSize;
+        }
+    }
+
     /**
      * write
      * write to FileTableEntry from buffer
@@ -205,14 +358,34 @@ public class FileSystem {
         if ( ftEnt.mode.equals( "r" ) ) {
             return -1;
         }
+        // nothing to write: at a block boundary lastBlock below would
+        // name a block the write never touches, and allocate it
+        if ( buffer.length == 0 ) {
+            return 0;
+        }
 
         int bytesWrite = 0;
         int bytesRemain = buffer.length;
+        int blockSize = Volume.blockSize;
+
+        synchronized ( ftEnt.inode ) {
+            // first and last file block this write touches
+            int firstBlock = ftEnt.seekPtr / blockSize;
+            int lastBlock = ( ftEnt.seekPtr + bytesRemain - 1 ) / blockSize;
+            int[] targets = new int[Math.max( lastBlock - firstBlock + 1, 0 )];
+
+            // with extents, the blocks past the end of the file are
+            // allocated first, in as few runs as the free space allows
+            if ( Volume.revision == Volume.extents &&
+                 !allocateRuns( ftEnt.inode, lastBlock + 1 ) ) {
+                return -1;
+            }
 
-        synchronized ( ftEnt ) {
-            while ( bytesRemain > 0 ) {
+            // map every block to a disk block, allocating missing ones
+            for ( int i = 0; i < targets.length; i++ ) {
+                int offset = ( firstBlock + i ) * blockSize;
                 // get block to write to
-                int targetBlock = ftEnt.inode.findTargetBlock( ftEnt.seekPtr );
+                int targetBlock = ftEnt.inode.findTargetBlock( offset );
 
                 // targetBlock is not found
                 if ( targetBlock == -1 ) {
@@ -220,19 +393,19 @@ public class FileSystem {
                     int freeBlock = superblock.getFreeBlock( );
 
                     boolean isTarget = ftEnt.inode.setTargetBlock(
-                            ftEnt.seekPtr, (short)freeBlock );
+                            offset, freeBlock );
 
                     // check if not target block
                     if ( !isTarget ) {
                         // check for index block
-                        short block = (short)superblock.getFreeBlock( );
+                        int block = superblock.getFreeBlock( );
                         if ( !ftEnt.inode.setIndexBlock( block ) ) {
                             return -1; // not index block, error
                         }
 
                         // recheck target block if index block ok
-                        if ( !ftEnt.inode.setTargetBlock( ftEnt.seekPtr,
-                                (short)freeBlock ) ) {
+                        if ( !ftEnt.inode.setTargetBlock( offset,
+                                freeBlock ) ) {
                             return -1;
                         }
                     }
@@ -240,24 +413,45 @@ public class FileSystem {
                     targetBlock = freeBlock;
                 }
 
-                // array to store block data and write
-                byte[] blockData = new byte[512];
-                // read data if any from disk
-                SysLib.rawread( targetBlock, blockData );
+                targets[i] = targetBlock;
+            }
+
+            int i = 0;
+            while ( bytesRemain > 0 ) {
+                // blocks that follow each other on disk go in one command
+                int run = 1;
+                while ( i + run < targets.length &&
+                        targets[i + run] == targets[i] + run ) {
+                    run++;
+                }
+
+                // array to store the run's data and write
+                byte[] blockData = new byte[run * blockSize];
 
                 // current seekPtr position
-                int currentPosition = ftEnt.seekPtr % 512;
-                // number of bytes remain in block
-                int spaceRemaining = 512 - currentPosition;
+                int currentPosition = ftEnt.seekPtr % blockSize;
+                // number of bytes remain in the run
+                int spaceRemaining = run * blockSize - currentPosition;
                 // get the smaller values for writing
                 int seekIncrease = Math.min( spaceRemaining, bytesRemain );
+                int endPosition = currentPosition + seekIncrease;
+
+                // read data if any from disk, only needed for the first and
+                // last block when they are not overwritten entirely
+                if ( currentPosition > 0 || endPosition < blockSize ) {
+                    readBlock( targets[i], blockData, 0 );
+                }
+                if ( run > 1 && endPosition % blockSize != 0 ) {
+                    readBlock( targets[i + run - 1], blockData,
+                               ( run - 1 ) * blockSize );
+                }
 
                 // get data from buffer
                 System.arraycopy( buffer, bytesWrite, blockData,
                                   currentPosition, seekIncrease );
 
                 // write to disk
-                SysLib.rawwrite( targetBlock, blockData );
+                Volume.write( targets[i], blockData );
 
                 // increase seekPtr index for next loop
                 ftEnt.seekPtr += seekIncrease;
@@ -265,6 +459,8 @@ public class FileSystem {
                 bytesWrite += seekIncrease;
                 // decrease number of bytes remained
                 bytesRemain -= seekIncrease;
+                // move on to the next run
+                i += run;
 
                 // increase file size if necessary
                 if ( ftEnt.inode.length < ftEnt.seekPtr ) {
@@ -278,6 +474,60 @@ public class FileSystem {
         return bytesWrite;
     }
 
+    /**
+     * allocateRuns
+     * map the blocks of a revision 3 file up to blocks - 1 that are not
+     * mapped yet to runs from the superblock, each added as an extent.  A
+     * file that grows asks for a quarter of what it maps more than it
+     * needs, so one written a little at a time next to other writers
+     * still ends up in few extents; the blocks past its length go back
+     * when it is truncated.
+     * 
+     * @param inode the file's inode
+     * @param blocks the # file blocks to map
+     * 
+     */
+    private boolean allocateRuns( Inode inode, int blocks ) {
+        int missing = blocks - inode.mappedBlocks( );
+        int extra = inode.mappedBlocks( ) / 4;
+        while ( missing > 0 ) {
+            int[] run = superblock.getFreeRun( missing + extra );
+            if ( run == null ) {
+                return false; // the disk is full
+            }
+            if ( !inode.addExtent( run[0], run[1] ) ) {
+                // the inode's extents are used up: add an extent block
+                int block = superblock.getFreeBlock( );
+                if ( block == -1 || !inode.setIndexBlock( block ) ) {
+                    if ( block != -1 ) {
+                        superblock.returnBlock( block );
+                    }
+                    superblock.returnRun( run[0], run[1] );
+                    return false;
+                }
+                inode.addExtent( run[0], run[1] );
+            }
+            missing -= run[1];
+        }
+        return true;
+    }
+
+    /**
+     * readBlock
+     * read one disk block into data at the given offset
+     * 
+     * @param block the disk block
+     * @param data the array to fill
+     * @param offset where the block goes in data
+     * 
+     */
+    private void readBlock( int block, byte[] data, int offset ) {
+        int blockSize = Volume.blockSize;
+        byte[] blockData = new byte[blockSize];
+        Volume.read( block, blockData );
+        System.arraycopy( blockData, 0, data, offset, blockSize );
+    }
+
     /**
      * deallocaAllBlocks
      * free the blocks from a given file
@@ -290,37 +540,55 @@ public class FileSystem {
         Inode inode = ftEnt.inode;
         if(inode == null) return false;
 
-        // Deallocate all 11 direct blocks in inode. Iterate 11 blocks until
-        // reach the end of direct blocks ( hit -1 ).
-        for(int i = 0; i < inode.direct.length; i++){
-            // Block to be deallocate
-            int blockID = inode.direct[i];
-            // If hit the last block, get out of loop
-            if(blockID == -1) break;
-            // Return the block back to superblock
-            superblock.returnBlock(blockID);
-            // Set the block to -1
-            inode.direct[i] = -1;
-        }
+        // The emptied inode goes to the journal before its blocks go back
+        // to the free list: were the free list committed first, a crash
+        // could replay an inode pointing at blocks that are free again
+        java.util.ArrayList<int[]> freed = new java.util.ArrayList<int[]>();
 
-        // Deallocate indirect block in inode.
-        if(inode.indirect != -1){
-            // Load the current indirect blocks
-            byte[] b = new byte[Disk.blockSize];
-            SysLib.rawread(inode.indirect, b);
-            // Iterate through the indirect block until reach the end (hit -1)
-            for(int i = 0; i < b.length; i += 2){
-                // Get the indirect pointer
-                int blockID = SysLib.bytes2short(b,i);
-                // If hit the last indirect pointer, get out of loop
+        // Revision 3: return each extent to the superblock as one run
+        if(Volume.revision == Volume.extents){
+            for(int i = 0; i < inode.extentCount(); i++){
+                freed.add(new int[] { inode.extentStart(i),
+                                      inode.extentLength(i) });
+            }
+            inode.clearExtents();
+        } else {
+            // Deallocate all 11 direct blocks in inode. Iterate 11 blocks
+            // until reach the end of direct blocks ( hit -1 ).
+            for(int i = 0; i < inode.direct.length; i++){
+                // Block to be deallocate
+                int blockID = inode.direct[i];
+                // If hit the last block, get out of loop
                 if(blockID == -1) break;
-                // Return the block back to superblock
-                superblock.returnBlock(blockID);
+                freed.add(new int[] { blockID, 1 });
                 // Set the block to -1
-                SysLib.short2bytes((short) -1, b, i);
+                inode.direct[i] = -1;
             }
-            // Write back indirect block
-            SysLib.rawwrite(inode.indirect, b);
+
+            // Deallocate indirect block in inode.
+            if(inode.indirect != -1){
+                // Iterate through the indirect pointers until reach the end
+                // (hit -1)
+                for(int i = 0; i < Inode.pointersPerBlock(); i++){
+                    // Get the indirect pointer
+                    int blockID = inode.getIndexPointer(i);
+                    // If hit the last indirect pointer, get out of loop
+                    if(blockID == -1) break;
+                    freed.add(new int[] { blockID, 1 });
+                    // Set the block to -1; the inode writes the index block
+                    // back
+                    inode.setIndexPointer(i, -1);
+                }
+            }
+        }
+        // The file is empty now; the blocks are not cleared when they are
+        // reused, so the old length must not cover them
+        inode.length = 0;
+        inode.toDisk(ftEnt.iNumber);
+
+        // Return the blocks back to superblock
+        for(int[] run : freed){
+            superblock.returnRun(run[0], run[1]);
         }
         // Reset seek pointer to beginning of file
         ftEnt.seekPtr = 0;
@@ -355,7 +623,7 @@ public class FileSystem {
      * 
      */  
     int seek( FileTableEntry ftEnt, int offset, int whence ) {
-        synchronized (ftEnt){
+        synchronized (ftEnt.inode){
             // Size of the current file
             int fileSize = fsize(ftEnt);
             switch (whence){
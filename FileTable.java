@@ -1,16 +1,23 @@
 /**
  * FileTable.java
  * File table consists vector to store all the file table entries 
- * and directory folder.
+ * and directory folder.  It also keeps the inode table: one Inode object
+ * per iNumber, read from disk the first time the file is opened and
+ * shared by every entry opening it after that, so reopening a file costs
+ * no disk I/O and writers through different entries see the same length
+ * and pointers.  Inode.count counts the entries using an inode; the last
+ * one to close saves it to disk.
  *
  * @since    6/5/2014 
  */
+import java.util.HashMap;
 import java.util.Vector;
 
 public class FileTable {
 
     private Vector table;            // the actual entity of this file table
     private Directory dir;            // the root directory
+    private HashMap<Short, Inode> inodes; // the inode table, by iNumber
 
     /**
      * constructor
@@ -22,6 +29,7 @@ public class FileTable {
     public FileTable(Directory directory) { // constructor
         table = new Vector();        // instantiate a file (structure) table
         dir = directory;                // receive a reference to the Director
+        inodes = new HashMap<Short, Inode>();
     }                                // from the file system
 
     /**
@@ -40,19 +48,21 @@ public class FileTable {
 
         // Allocate a new file (structure) table entry for this file name
         if (iNumber >= 0) {
-            inode = new Inode(iNumber);
+            inode = iget(iNumber);
         } else {
             // If read mode, return a null
             if (mode.equals("r")) return null;
             // Allocate/retrieve and register the corresponding inode using dir
             iNumber = dir.ialloc(filename);
+            // A new file replaces whatever a deleted one left in the table
             inode = new Inode();
+            inodes.put(iNumber, inode);
+            // Immediately write the new inode to the disk
+            inode.toDisk(iNumber);
         }
 
         // Increment this inode's count
         inode.count++;
-        // Immediately write back this inode to the disk
-        inode.toDisk(iNumber);
         // Return a reference to this file (structure) table entry
         FileTableEntry reference = new FileTableEntry(inode, iNumber, mode);
         table.addElement(reference);
@@ -73,8 +83,13 @@ public class FileTable {
         if (table.remove(e)) {
             // Decrement number of file table entries point to this inode
             if (e.inode.count > 0) e.inode.count--;
-            // Save the corresponding inode to the disk
-            e.inode.toDisk(e.iNumber);
+            // Save the corresponding inode to the disk on its last close;
+            // it stays in the table for the next open
+            if (e.inode.count == 0) {
+                synchronized (e.inode) {
+                    e.inode.toDisk(e.iNumber);
+                }
+            }
             // Free this file table entry.
             e = null;
             // Return true if this file table entry found in my table
@@ -84,6 +99,41 @@ public class FileTable {
         return false;
     }
 
+    /**
+     * iget
+     * return the table's inode for iNumber, reading it from disk if no
+     * entry has used it yet
+     * 
+     * @param iNumber the inode number
+     * 
+     */
+    private Inode iget(short iNumber) {
+        Inode inode = inodes.get(iNumber);
+        if (inode == null) {
+            inode = new Inode(iNumber);
+            // only the entries of this table count, not a count on disk
+            inode.count = 0;
+            inodes.put(iNumber, inode);
+        }
+        return inode;
+    }
+
+    /**
+     * sync
+     * save every inode that is in use to the disk
+     * 
+     */
+    public synchronized void sync() {
+        for (Short iNumber : inodes.keySet()) {
+            Inode inode = inodes.get(iNumber);
+            if (inode.count > 0) {
+                synchronized (inode) {
+                    inode.toDisk(iNumber);
+                }
+            }
+        }
+    }
+
     /**
      * fempty
      * return true if the file table is empty
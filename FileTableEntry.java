@@ -6,6 +6,8 @@ public class FileTableEntry {  // Each table entry should have
     public final short iNumber;//    this inode number
     public int count;          //    a count to maintain #threads sharing this
     public final String mode;  //    "r", "w", "w+", or "a"
+    public int advice;         //    how it is read, a Kernel.ADVISE_ hint
+    public int readAhead;      //    the offset read ahead up to
 
     FileTableEntry ( Inode i, short inumber, String m ) {
     	seekPtr = 0;           // the seek pointer is set to the file top.
@@ -13,6 +15,8 @@ public class FileTableEntry {  // Each table entry should have
         iNumber = inumber;     
         count = 1;           // at least one thread is using this entry.
         mode = m;            // once file access mode is set, it never changes.
+        advice = Kernel.ADVISE_NORMAL;
+        readAhead = 0;
 
     	if ( mode.compareTo( "a" ) == 0 )
     	    seekPtr = inode.length;
@@ -0,0 +1,40 @@
+import java.nio.ByteBuffer;
+
+/**
+ * FrameArena
+ * the frames of a Cache, carved out of direct ByteBuffers rather than
+ * kept as byte arrays, so that a cache of a gigabyte or more costs the
+ * garbage collector nothing to trace or copy.  A ByteBuffer holds at most
+ * 2GB, so the arena is one slab when it fits in slabBytes and as many
+ * slabs as it takes otherwise.  Blocks are copied in and out of Java
+ * arrays with absolute gets and puts, which threads working on different
+ * frames may do at the same time.
+ */
+public class FrameArena {
+   private static final int slabBytes = 1 << 30;
+
+   private final int frameSize;
+   private final int slabFrames;  // frames per slab
+   private ByteBuffer slabs[];
+
+   public FrameArena( int frames, int frameSize ) {
+      this.frameSize = frameSize;
+      slabFrames = slabBytes / frameSize;
+      slabs = new ByteBuffer[( frames + slabFrames - 1 ) / slabFrames];
+      for ( int i = 0; i < slabs.length; i++ )
+         slabs[i] = ByteBuffer.allocateDirect(
+            Math.min( frames - i * slabFrames, slabFrames ) * frameSize );
+   }
+
+   // copies frame into buffer at offset
+   public void get( int frame, byte buffer[], int offset ) {
+      slabs[frame / slabFrames].get( frame % slabFrames * frameSize,
+                                     buffer, offset, frameSize );
+   }
+
+   // copies frameSize bytes of buffer from offset on into frame
+   public void put( int frame, byte buffer[], int offset ) {
+      slabs[frame / slabFrames].put( frame % slabFrames * frameSize,
+                                     buffer, offset, frameSize );
+   }
+}
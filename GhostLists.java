@@ -0,0 +1,67 @@
+/**
+ * GhostLists
+ * LRU lists of the numbers of blocks recently evicted from a cache, with
+ * no data: a scan-resistant policy tells a block coming back soon after
+ * its eviction from one it has never seen.  Holds at most capacity blocks
+ * across all its lists; every operation is O(1).
+ */
+public class GhostLists {
+   private final int lists;       // the list of free slots comes last
+   private IndexLists slots;
+   private int blockOf[];         // slot -> block number
+   private IntMap slotOf;         // block number -> slot
+
+   public GhostLists( int capacity, int lists ) {
+      this.lists = lists;
+      slots = new IndexLists( capacity, lists + 1 );
+      blockOf = new int[capacity];
+      slotOf = new IntMap( capacity );
+      clear( );
+   }
+
+   // the list remembering blockId, or IndexLists.NONE
+   public int listOf( int blockId ) {
+      int slot = slotOf.get( blockId );
+      return ( slot == IntMap.NONE ) ? IndexLists.NONE : slots.listOf( slot );
+   }
+
+   public void remove( int blockId ) {
+      int slot = slotOf.get( blockId );
+      if ( slot != IntMap.NONE ) {
+         slotOf.remove( blockId );
+         slots.addFront( lists, slot );
+      }
+   }
+
+   // remembers blockId at the front of list; the caller makes room first
+   public void add( int list, int blockId ) {
+      int slot = slots.back( lists );
+      if ( slot == IndexLists.NONE )
+         return;
+      blockOf[slot] = blockId;
+      slotOf.put( blockId, slot );
+      slots.addFront( list, slot );
+   }
+
+   // forgets the least recently remembered block of list
+   public void dropBack( int list ) {
+      int slot = slots.back( list );
+      if ( slot != IndexLists.NONE )
+         remove( blockOf[slot] );
+   }
+
+   public int size( int list ) {
+      return slots.size( list );
+   }
+
+   public boolean isFull( ) {
+      return slots.size( lists ) == 0;
+   }
+
+   public void clear( ) {
+      slots.clear( );
+      slotOf.clear( );
+      for ( int slot = 0; slot < blockOf.length; slot++ )
+         slots.addFront( lists, slot );
+   }
+}
@@ -0,0 +1,37 @@
+/**
+ * HddModel
+ * a moving-head disk: every command pays transferTime, plus delayPerTrack
+ * for each track the head moves over.  Once there, a whole track streams
+ * past the head every transferTime, so the rest of a vectored command
+ * costs transferTime / trackSize per block plus delayPerTrack per track
+ * boundary crossed.
+ */
+public class HddModel implements DiskModel {
+   private final int trackSize;              // blocks per track
+   private final long transferTime = 20000;  // microseconds
+   private final long delayPerTrack = 1000;  // microseconds
+   private Histogram serviceTimes;
+
+   public HddModel( int trackSize ) {
+      this.trackSize = trackSize;
+      serviceTimes = new Histogram( "us" );
+   }
+
+   public long serviceTime( int headBlockId, int blockId, int count ) {
+      int lastBlockId = blockId + count - 1;
+      long time = transferTime + delayPerTrack 
+         * Math.abs( blockId/trackSize - headBlockId/trackSize )
+         + ( count - 1 ) * transferTime / trackSize
+         + delayPerTrack * ( lastBlockId/trackSize - blockId/trackSize );
+      serviceTimes.record( time );
+      return time;
+   }
+
+   public Histogram getServiceTimes( ) {
+      return serviceTimes;
+   }
+
+   public String getName( ) {
+      return "hdd";
+   }
+}
@@ -0,0 +1,64 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * HeapDiskImage
+ * keeps the whole volume in one heap array that is filled from the host
+ * file, at boot or, if lazy, a chunk at a time on demand.  Syncs use the
+ * copy-on-write snapshots of DiskImage.
+ */
+public class HeapDiskImage extends DiskImage {
+   private final static int loadBlocks = 64; // blocks per lazy load
+   private byte data[];
+
+   public HeapDiskImage( String fileName, int diskSize, boolean lazy ) {
+      super( fileName, diskSize );
+      data = new byte[ diskSize * Disk.blockSize ];
+      if ( lazy && new File( fileName ).exists( ) ) {
+         openChannel( );
+         if ( channel != null ) {
+            loadLazily( ( diskSize + loadBlocks - 1 ) / loadBlocks,
+                        loadBlocks );
+            return;
+         }
+      }
+      try {
+         FileInputStream ifstream = new FileInputStream( fileName );
+         int readableSize = ( ifstream.available( ) < data.length ) ?
+            ifstream.available( ) : data.length; 
+         ifstream.read( data, 0, readableSize );
+         ifstream.close( );
+      } catch ( FileNotFoundException e ) {
+         SysLib.cerr( "threadOS: " + fileName + " created\n" );
+      } catch ( IOException e ) {
+         SysLib.cerr( e.toString( ) + "\n" );
+      }
+      openChannel( );
+   }
+
+   protected void load( int chunk ) throws IOException {
+      int first = chunk * loadBlocks;
+      int count = Math.min( loadBlocks, diskSize - first );
+      // the array offset of each byte is its offset in the host file
+      ByteBuffer buffer = ByteBuffer.wrap( data, first * Disk.blockSize,
+                                           count * Disk.blockSize );
+      while ( buffer.hasRemaining( ) &&
+              channel.read( buffer, buffer.position( ) ) > 0 )
+         ;
+   }
+
+   public void read( int blockId, byte buffer[], int offset ) {
+      fault( blockId );
+      System.arraycopy( data, blockId * Disk.blockSize, 
+            buffer, offset, 
+            Disk.blockSize );
+   }
+
+   public synchronized void write( int blockId, byte buffer[], int offset ) {
+      fault( blockId );
+      beforeWrite( blockId );
+      System.arraycopy( buffer, offset, 
+            data, blockId * Disk.blockSize, 
+            Disk.blockSize );
+   }
+}
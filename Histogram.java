@@ -0,0 +1,63 @@
+/**
+ * Histogram
+ * counts samples in power-of-two buckets: bucket 0 holds 0, bucket i holds
+ * values in [2^(i-1), 2^i).  Cheap enough to record every disk request.
+ */
+public class Histogram {
+   private static final int buckets = 40;
+
+   private final String unit;  // printed after bucket bounds, e.g. "us"
+   private long counts[];
+   private long samples;
+   private long sum;
+   private long max;
+
+   public Histogram( String unit ) {
+      this.unit = unit;
+      counts = new long[buckets];
+      samples = 0;
+      sum = 0;
+      max = 0;
+   }
+
+   public synchronized void record( long value ) {
+      if ( value < 0 )
+         value = 0;
+      int bucket = 64 - Long.numberOfLeadingZeros( value );
+      counts[Math.min( bucket, buckets - 1 )]++;
+      samples++;
+      sum += value;
+      max = Math.max( max, value );
+   }
+
+   public synchronized long getSamples( ) {
+      return samples;
+   }
+
+   public synchronized long getMean( ) {
+      return ( samples > 0 ) ? sum / samples : 0;
+   }
+
+   public synchronized void reset( ) {
+      counts = new long[buckets];
+      samples = 0;
+      sum = 0;
+      max = 0;
+   }
+
+   // one line per non-empty bucket: "  [lo, hi) unit: count"
+   public synchronized String toString( ) {
+      StringBuffer s = new StringBuffer( );
+      s.append( "n=" + samples + " mean=" + getMean( ) + unit +
+                " max=" + max + unit + "\n" );
+      for ( int i = 0; i < buckets; i++ ) {
+         if ( counts[i] == 0 )
+            continue;
+         long lo = ( i == 0 ) ? 0 : 1L << ( i - 1 );
+         long hi = 1L << i;
+         s.append( "  [" + lo + ", " + hi + ") " + unit + ": " +
+                   counts[i] + "\n" );
+      }
+      return s.toString( );
+   }
+}
@@ -0,0 +1,81 @@
+/**
+ * IndexLists
+ * doubly linked lists over the indices 0 to size - 1, kept in primitive
+ * arrays.  An index is in at most one list at a time.  Adding an index to
+ * the front of a list, removing it from anywhere and finding the back of a
+ * list are all O(1), which is what an LRU list of cache frames needs.
+ */
+public class IndexLists {
+   public static final int NONE = -1;
+
+   private final int next[];   // towards the back
+   private final int prev[];   // towards the front
+   private final int listOf[]; // the list holding each index, or NONE
+   private final int front[];
+   private final int back[];
+   private final int sizes[];
+
+   public IndexLists( int size, int lists ) {
+      next = new int[size];
+      prev = new int[size];
+      listOf = new int[size];
+      front = new int[lists];
+      back = new int[lists];
+      sizes = new int[lists];
+      clear( );
+   }
+
+   // puts index at the front of list, taking it out of its list first
+   public void addFront( int list, int index ) {
+      remove( index );
+      listOf[index] = list;
+      prev[index] = NONE;
+      next[index] = front[list];
+      if ( front[list] != NONE )
+         prev[front[list]] = index;
+      else
+         back[list] = index;
+      front[list] = index;
+      sizes[list]++;
+   }
+
+   public void remove( int index ) {
+      int list = listOf[index];
+      if ( list == NONE )
+         return;
+      if ( prev[index] != NONE )
+         next[prev[index]] = next[index];
+      else
+         front[list] = next[index];
+      if ( next[index] != NONE )
+         prev[next[index]] = prev[index];
+      else
+         back[list] = prev[index];
+      listOf[index] = NONE;
+      sizes[list]--;
+   }
+
+   public int back( int list ) {
+      return back[list];
+   }
+
+   // the index in front of index in its list, or NONE
+   public int previous( int index ) {
+      return prev[index];
+   }
+
+   public int listOf( int index ) {
+      return listOf[index];
+   }
+
+   public int size( int list ) {
+      return sizes[list];
+   }
+
+   public void clear( ) {
+      java.util.Arrays.fill( listOf, NONE );
+      java.util.Arrays.fill( front, NONE );
+      java.util.Arrays.fill( back, NONE );
+      java.util.Arrays.fill( sizes, 0 );
+   }
+}
@@ -3,17 +3,37 @@
  * represents one file in the FileSystem
  * holds the longth of its file, the number of table entries that point to this node,
  * and a flag that indicates whether it's been used (0-1) or some other status (2, 3, 4..)
+ *
+ * The pointers of the index block are read once, the first time a block
+ * past the direct ones is looked up, and kept decoded in memory, so
+ * mapping an offset of a large file costs no disk I/O.  Changes to them
+ * are written back in one go by toDisk( ).
+ *
+ * Revision 3 (Volume.extents) inodes map the file as a list of extents,
+ * runs of consecutive disk blocks given by their first block and length,
+ * in file order.  Six fit in the inode; once they are used up, indirect
+ * points to an extent block holding blockSize / 8 more.  The direct
+ * pointers are unused.  A file written in order through getFreeRun( )
+ * takes one extent per run the allocator could find, so a big file is a
+ * handful of extents and moves in whole-extent transfers.
  */
 public class Inode {
 
-    private final static int iNodeSize  = 32;      // fix to 32 bytes
     private final static int directSize = 11;      // # direct pointers
+    private final static int inlineExtents = 6;    // # extents in the inode
 
     public int length;                             // file size in bytes
     public short count;                            // # file-table entries pointing to this
     public short flag;                             // 0 = unused, 1 = used, ...
-    public short direct[] = new short[directSize]; // direct pointers
-    public short indirect;                         // a indirect pointer
+    public int direct[] = new int[directSize];     // direct pointers
+    public int indirect;                           // a indirect pointer
+
+    private int pointers[] = null;                 // the index block, decoded
+    private boolean pointersDirty = false;         // pointers not on disk yet
+
+    private int extentStart[] = null;              // revision 3 extents:
+    private int extentLength[] = null;             //   first block, # blocks
+    private int extents = 0;                       // # extents in use
 
 // -----------------------------------------------------------------------------
 // Default Constructor 
@@ -27,6 +47,7 @@ public class Inode {
         }
 
         indirect = -1;
+        newExtents( );
     }
 
 // -----------------------------------------------------------------------------
@@ -34,10 +55,10 @@ public class Inode {
 // Retrieving inode from disk
     Inode( short iNumber ) {
         
-        int blockNumber = 1 + iNumber / 16;
-        byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread( blockNumber, data );
-        int offset = ( iNumber % 16 ) * 32;
+        int blockNumber = blockOf( iNumber );
+        byte[] data = new byte[Volume.blockSize];
+        Volume.readMeta( blockNumber, data );
+        int offset = offsetOf( iNumber );
 
         // Length
         length = SysLib.bytes2int( data, offset );
@@ -51,15 +72,20 @@ public class Inode {
         flag = SysLib.bytes2short( data, offset );
         offset += 2;
 
+        if ( Volume.revision == Volume.extents ) {
+            extentsFromBytes( data, offset );
+            return;
+        }
+
         // Direct
         for (int i = 0; i < directSize; i++) {
-            direct[i] = SysLib.bytes2short( data, offset);
-            offset += 2;
+            direct[i] = getPointer( data, offset );
+            offset += pointerSize( );
         }
 
         // Indirect
-        indirect = SysLib.bytes2short( data, offset);
-        offset += 2;
+        indirect = getPointer( data, offset );
+        offset += pointerSize( );
 
     }
 
@@ -68,41 +94,114 @@ public class Inode {
 // Saves to the disk as the i-th inode
     public void toDisk( short iNumber ) {
 
-        byte[] iNode = new byte[iNodeSize];
-        int offset = 0;
+        // the index block first, so the inode never points to a stale one
+        writeIndex( );
+
+        byte[] iNode = new byte[inodeSize( )];
+        toBytes( iNode, 0 );
+
+        int blockNumber = blockOf( iNumber );
+        byte[] data = new byte[Volume.blockSize];
+        Volume.readMeta( blockNumber, data );
+        int offset = offsetOf( iNumber );
+
+        System.arraycopy( iNode, 0, data, offset, inodeSize( ) );
+        Volume.writeMeta( blockNumber, data );
+    }
+
+// -----------------------------------------------------------------------------
+// inodeSize, pointerSize
+// Revision 1 inodes take 32 bytes with 16-bit block pointers, revision 2
+// inodes take 64 bytes with 32-bit pointers (the tail is unused)
+    public static int inodeSize( ) {
+        return ( Volume.revision == Volume.shortPointers ) ? 32 : 64;
+    }
+
+    public static int pointerSize( ) {
+        return ( Volume.revision == Volume.shortPointers ) ? 2 : 4;
+    }
+
+// -----------------------------------------------------------------------------
+// getPointer, setPointer
+// A block pointer at b[offset] in the width of the current revision
+    public static int getPointer( byte[] b, int offset ) {
+        if ( Volume.revision == Volume.shortPointers ) {
+            return SysLib.bytes2short( b, offset );
+        }
+        return SysLib.bytes2int( b, offset );
+    }
+
+    public static void setPointer( int pointer, byte[] b, int offset ) {
+        if ( Volume.revision == Volume.shortPointers ) {
+            SysLib.short2bytes( ( short )pointer, b, offset );
+        } else {
+            SysLib.int2bytes( pointer, b, offset );
+        }
+    }
+
+// -----------------------------------------------------------------------------
+// inodesPerBlock
+// # inodes stored in one file system block
+    public static int inodesPerBlock( ) {
+        return Volume.blockSize / inodeSize( );
+    }
+
+// -----------------------------------------------------------------------------
+// blockOf, offsetOf
+// The block holding the i-th inode (the table starts at block 1) and the
+// inode's byte offset within that block
+    public static int blockOf( short iNumber ) {
+        return 1 + iNumber / inodesPerBlock( );
+    }
+
+    public static int offsetOf( short iNumber ) {
+        return ( iNumber % inodesPerBlock( ) ) * inodeSize( );
+    }
+
+// -----------------------------------------------------------------------------
+// pointersPerBlock
+// # block pointers in an index block
+    public static int pointersPerBlock( ) {
+        return Volume.blockSize / pointerSize( );
+    }
+
+// -----------------------------------------------------------------------------
+// toBytes
+// Stores this inode's inodeSize( ) bytes at data[offset]
+    public void toBytes( byte[] data, int offset ) {
+        int start = offset;
 
         // Length - int2bytes( int i, byte[] b, int offset )
-        SysLib.int2bytes( length, iNode,  offset );
+        SysLib.int2bytes( length, data,  offset );
         offset += 4;
 
         // Count - short2bytes( short s, byte[] b, int offset )
-        SysLib.short2bytes( count, iNode, offset );
+        SysLib.short2bytes( count, data, offset );
         offset += 2;
 
         // Flag - short2bytes( short s, byte[] b, int offset )
-        SysLib.short2bytes( flag, iNode, offset );
+        SysLib.short2bytes( flag, data, offset );
         offset += 2;
 
-        // Direct - short2bytes( short s, byte[] b, int offset )
-        for (int i = 0; i < directSize; i++ ) {
-            SysLib.short2bytes( direct[i], iNode, offset );  
-            offset += 2; 
+        // Extents - the first ones, then the extent block
+        if ( Volume.revision == Volume.extents ) {
+            putExtents( 0, inlineExtents, data, offset );
+            SysLib.int2bytes( indirect, data, start + 8 + inlineExtents * 8 );
+            return;
         }
 
-        // Indirect - short2bytes( short s, byte[] b, int offset )
-        SysLib.short2bytes( indirect, iNode, offset );  
-        offset += 2;
-
-        int blockNumber = 1 + iNumber / 16;
-        byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread( blockNumber, data );
-        offset = ( iNumber % 16 ) * 32;
+        // Direct - setPointer( int pointer, byte[] b, int offset )
+        for (int i = 0; i < directSize; i++ ) {
+            setPointer( direct[i], data, offset );  
+            offset += pointerSize( ); 
+        }
 
-        System.arraycopy( iNode, 0, data, offset, iNodeSize );
-        SysLib.rawwrite( blockNumber, data );
+        // Indirect - setPointer( int pointer, byte[] b, int offset )
+        setPointer( indirect, data, offset );  
+        offset += pointerSize( );
     }
 
-    public short getIndexBlockNumber( ) {
+    public int getIndexBlockNumber( ) {
         return indirect;
     }
 
@@ -128,24 +227,220 @@ public class Inode {
         //return true;
     //}
 
-    public short findTargetBlock( int offset ) {
-        int targetBlock = offset / Disk.blockSize;
-        if (targetBlock  < directSize) {
-            return direct[targetBlock ];
+// -----------------------------------------------------------------------------
+// getIndexPointer, setIndexPointer
+// The i-th pointer of the index block, -1 if there is no index block or i
+// is past its end; setting one marks the index block dirty
+    public int getIndexPointer( int i ) {
+        if ( indirect < 0 || i < 0 || i >= pointersPerBlock( ) ||
+             Volume.revision == Volume.extents ) {
+            return -1;
         }
+        return readIndex( )[i];
+    }
 
-        if ( indirect < 0 ) {
+    public void setIndexPointer( int i, int pointer ) {
+        readIndex( )[i] = pointer;
+        pointersDirty = true;
+    }
+
+// -----------------------------------------------------------------------------
+// readIndex, writeIndex
+// Decodes the index block the first time it is needed, and writes it back
+// if a pointer changed since
+    private int[] readIndex( ) {
+        if ( pointers == null ) {
+            byte[] b = new byte[Volume.blockSize];
+            Volume.read( indirect, b );
+            pointers = new int[pointersPerBlock( )];
+            for ( int i = 0; i < pointers.length; i++ ) {
+                pointers[i] = getPointer( b, i * pointerSize( ) );
+            }
+        }
+        return pointers;
+    }
+
+    private void writeIndex( ) {
+        if ( !pointersDirty ) {
+            return;
+        }
+        byte[] b = new byte[Volume.blockSize];
+        if ( Volume.revision == Volume.extents ) {
+            putExtents( inlineExtents, extentStart.length, b, 0 );
+        } else {
+            for ( int i = 0; i < pointers.length; i++ ) {
+                setPointer( pointers[i], b, i * pointerSize( ) );
+            }
+        }
+        Volume.write( indirect, b );
+        pointersDirty = false;
+    }
+
+// -----------------------------------------------------------------------------
+// newExtents, extentsFromBytes, putExtents
+// Revision 3: room for the extents of the inode and an extent block, the
+// extents read from an inode at data[offset] and from its extent block,
+// and extents from to to - 1 stored at data[offset], 8 bytes each with
+// the unused ones as ( -1, 0 )
+    private void newExtents( ) {
+        if ( Volume.revision == Volume.extents ) {
+            extentStart = new int[inlineExtents + Volume.blockSize / 8];
+            extentLength = new int[extentStart.length];
+            extents = 0;
+        }
+    }
+
+    private void extentsFromBytes( byte[] data, int offset ) {
+        for ( int i = 0; i < directSize; i++ ) {
+            direct[i] = -1;
+        }
+        newExtents( );
+        for ( int i = 0; i < inlineExtents; i++, offset += 8 ) {
+            extentStart[i] = SysLib.bytes2int( data, offset );
+            extentLength[i] = SysLib.bytes2int( data, offset + 4 );
+            if ( extentLength[i] > 0 ) {
+                extents = i + 1;
+            }
+        }
+        indirect = SysLib.bytes2int( data, offset );
+
+        if ( indirect >= 0 && extents == inlineExtents ) {
+            byte[] b = new byte[Volume.blockSize];
+            Volume.read( indirect, b );
+            for ( int i = inlineExtents; i < extentStart.length; i++ ) {
+                int at = ( i - inlineExtents ) * 8;
+                extentStart[i] = SysLib.bytes2int( b, at );
+                extentLength[i] = SysLib.bytes2int( b, at + 4 );
+                if ( extentLength[i] <= 0 ) {
+                    break;
+                }
+                extents = i + 1;
+            }
+        }
+    }
+
+    private void putExtents( int from, int to, byte[] data, int offset ) {
+        for ( int i = from; i < to; i++, offset += 8 ) {
+            SysLib.int2bytes( ( i < extents ) ? extentStart[i] : -1,
+                              data, offset );
+            SysLib.int2bytes( ( i < extents ) ? extentLength[i] : 0,
+                              data, offset + 4 );
+        }
+    }
+
+// -----------------------------------------------------------------------------
+// mappedBlocks, addExtent, clearExtents, extentCount, extentStart, extentLength
+// Revision 3: the # file blocks the extents map, appending count blocks
+// from start on after them (false if there is no room for another extent),
+// dropping every extent, and the i-th extent
+    public int mappedBlocks( ) {
+        int blocks = 0;
+        for ( int i = 0; i < extents; i++ ) {
+            blocks += extentLength[i];
+        }
+        return blocks;
+    }
+
+    public boolean addExtent( int start, int count ) {
+        if ( extents > 0 &&
+             extentStart[extents - 1] + extentLength[extents - 1] == start ) {
+            // the run goes on where the last extent ends
+            extentLength[extents - 1] += count;
+        } else {
+            int room = ( indirect < 0 ) ? inlineExtents : extentStart.length;
+            if ( extents == room ) {
+                return false;
+            }
+            extentStart[extents] = start;
+            extentLength[extents++] = count;
+        }
+        if ( extents > inlineExtents ) {
+            pointersDirty = true;
+        }
+        return true;
+    }
+
+    public void clearExtents( ) {
+        if ( extents > inlineExtents ) {
+            pointersDirty = true;
+        }
+        extents = 0;
+    }
+
+    public int extentCount( ) {
+        return extents;
+    }
+
+    public int extentStart( int i ) {
+        return extentStart[i];
+    }
+
+    public int extentLength( int i ) {
+        return extentLength[i];
+    }
+
+    public int findTargetBlock( int offset ) {
+        int targetBlock = offset / Volume.blockSize;
+        if ( Volume.revision == Volume.extents ) {
+            for ( int i = 0; i < extents; i++ ) {
+                if ( targetBlock < extentLength[i] ) {
+                    return extentStart[i] + targetBlock;
+                }
+                targetBlock -= extentLength[i];
+            }
             return -1;
         }
+        if (targetBlock  < directSize) {
+            return direct[targetBlock ];
+        }
 
-        byte[] b = new byte[Disk.blockSize];
-        SysLib.rawread( indirect, b );
+        return getIndexPointer( targetBlock - directSize );
+    }
+
+    // number of file blocks, from the one holding offset on and at most
+    // max, that are consecutive on disk so one vectored command moves them
+    public int contiguousBlocks( int offset, int max ) {
+        int first = offset / Volume.blockSize;
+        if ( Volume.revision == Volume.extents ) {
+            // the rest of the extent holding offset
+            for ( int i = 0; i < extents; i++ ) {
+                if ( first < extentLength[i] ) {
+                    return Math.min( extentLength[i] - first, max );
+                }
+                first -= extentLength[i];
+            }
+            return 0;
+        }
+        int start = findTargetBlock( offset );
+        if ( start < 0 ) {
+            return 0;
+        }
 
-        return SysLib.bytes2short( b, (targetBlock  - directSize) * 2 );
+        int run = 1;
+        while ( run < max ) {
+            int block = first + run;
+            int target = ( block < directSize )
+                ? direct[block] : getIndexPointer( block - directSize );
+            if ( target != start + run ) {
+                break;
+            }
+            run++;
+        }
+        return run;
     }
 
     // used to check SuperBlock.getFreeBlock( ) for index block
-    public boolean setIndexBlock( short index ) {
+    public boolean setIndexBlock( int index ) {
+        // revision 3: the extent block, once the inode's extents are used
+        if ( Volume.revision == Volume.extents ) {
+            if ( extents < inlineExtents || indirect != -1 ) {
+                return false;
+            }
+            indirect = index;
+            pointersDirty = true;
+            return true;
+        }
+
         // check direct pointer
         for ( int i = 0; i < directSize; i++ ) {
             if ( direct[i] == -1 ) // not used
@@ -157,24 +452,22 @@ public class Inode {
             return false;
 
         indirect = index; // assign value to indirect pointer
-        short defaultValue = -1;
 
-        byte[] blockData = new byte[512];
-        int cycles = 512/2; // 2 bytes for 1 short
-
-        // set defaultValue into block
-        for ( int i = 0; i < cycles; i++ ) {
-            SysLib.short2bytes( defaultValue, blockData, i*2 );
-        }
-
-        SysLib.rawwrite( indirect, blockData ); // write to disk
+        // a new index block with no pointer set, written by toDisk( )
+        pointers = new int[pointersPerBlock( )];
+        java.util.Arrays.fill( pointers, -1 );
+        pointersDirty = true;
 
         return true;
     }
 
     // used to check SuperBlock.getFreeBlock( )
-    public boolean setTargetBlock( int seekValue, short index ) {
-        int size = seekValue / 512; // potential pointer
+    public boolean setTargetBlock( int seekValue, int index ) {
+        int size = seekValue / Volume.blockSize; // potential pointer
+        if ( Volume.revision == Volume.extents ) {
+            // only the block after the last mapped one can be added
+            return size == mappedBlocks( ) && addExtent( index, 1 );
+        }
         if ( size < directSize ) {
             if ( direct[size] == -1 ) { // pointer not used
                 // check for first pointer or if not, make sure
@@ -194,20 +487,15 @@ public class Inode {
             return false;
         }
 
-        byte[] blockData = new byte[512];
-        // read index block from disk
-        SysLib.rawread( indirect, blockData );
         int indirectNumber = size - directSize;
-        // check if index block
-        if ( SysLib.bytes2short( blockData, indirectNumber * 2 ) > 0 ) {
+        // check if past the index block or already used
+        if ( indirectNumber >= pointersPerBlock( ) ||
+             getIndexPointer( indirectNumber ) > 0 ) {
             return false;
         }
 
-        // copy the indirect number value
-        SysLib.short2bytes( index, blockData, indirectNumber * 2 );
-
-        // store this value to disk
-        SysLib.rawwrite( indirect, blockData );
+        // set the pointer in memory; toDisk( ) stores the index block
+        setIndexPointer( indirectNumber, index );
         return true;
     }
 
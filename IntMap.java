@@ -0,0 +1,81 @@
+/**
+ * IntMap
+ * a map from non-negative ints to ints kept in two primitive arrays with
+ * open addressing and linear probing, so a lookup neither boxes its key
+ * nor follows a chain.  Removal shifts the rest of the probe run back
+ * instead of leaving a tombstone, so lookups stay short however many
+ * keys have come and gone.  The table never grows: it is sized for the
+ * most keys it will hold and kept at most half full.
+ */
+public class IntMap {
+   public static final int NONE = -1; // get( ) of a missing key, free slot
+
+   private final int mask;
+   private final int shift;  // keeps the top bits of a hashed key
+   private final int keys[];
+   private final int values[];
+   private int size;
+
+   public IntMap( int maxKeys ) {
+      int capacity = Integer.highestOneBit( Math.max( maxKeys, 1 ) ) << 2;
+      mask = capacity - 1;
+      shift = Integer.numberOfLeadingZeros( mask );
+      keys = new int[capacity];
+      values = new int[capacity];
+      clear( );
+   }
+
+   public int get( int key ) {
+      for ( int i = slot( key ); keys[i] != NONE; i = ( i + 1 ) & mask )
+         if ( keys[i] == key )
+            return values[i];
+      return NONE;
+   }
+
+   public void put( int key, int value ) {
+      int i = slot( key );
+      while ( keys[i] != NONE && keys[i] != key )
+         i = ( i + 1 ) & mask;
+      if ( keys[i] == NONE )
+         size++;
+      keys[i] = key;
+      values[i] = value;
+   }
+
+   public void remove( int key ) {
+      int i = slot( key );
+      while ( keys[i] != key ) {
+         if ( keys[i] == NONE )
+            return;
+         i = ( i + 1 ) & mask;
+      }
+      size--;
+
+      // move back any later key of the run that could not have been
+      // placed at or before the hole
+      int hole = i;
+      for ( i = ( i + 1 ) & mask; keys[i] != NONE; i = ( i + 1 ) & mask ) {
+         int home = slot( keys[i] );
+         if ( ( ( i - home ) & mask ) >= ( ( i - hole ) & mask ) ) {
+            keys[hole] = keys[i];
+            values[hole] = values[i];
+            hole = i;
+         }
+      }
+      keys[hole] = NONE;
+   }
+
+   public void clear( ) {
+      java.util.Arrays.fill( keys, NONE );
+      size = 0;
+   }
+
+   public int size( ) {
+      return size;
+   }
+
+   // Fibonacci hashing: consecutive block numbers land far apart
+   private int slot( int key ) {
+      return ( key * 0x9e3779b9 ) >>> shift;
+   }
+}
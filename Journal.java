@@ -0,0 +1,335 @@
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Journal.java
+ * a write-ahead log for file system metadata.  Inode blocks, the superblock
+ * and free-list blocks are written to the journal instead of their home
+ * locations.  Updates from every thread collect in the running transaction,
+ * and a commit appends it to the log region at the end of the volume with
+ * one sequential write.  This thread commits every commitInterval ms, a
+ * sync commits at once, and a writer that fills a transaction commits it
+ * itself.  Committed blocks reach their home locations only when the log
+ * runs out of room (a checkpoint); until then they are read from memory.
+ * At boot the transactions still in the log are replayed.
+ *
+ * Log layout, in file system blocks from the start of the region:
+ *   0    header: magic, sequence # of the first transaction in the log
+ *   1... transactions, each a descriptor (magic, sequence #, # blocks,
+ *        # revoked, the block numbers, the revoked block numbers), the
+ *        block images, and a commit block (magic, sequence #, crc of the
+ *        descriptor and the images)
+ *
+ * A block that is freed and then reused for file data is revoked, so no
+ * older image of it is checkpointed or replayed over the data.
+ */
+public class Journal extends Thread {
+    private final static int headerMagic = 0x4a524e4c;     // "JRNL"
+    private final static int descriptorMagic = 0x4a445343; // "JDSC"
+    private final static int commitMagic = 0x4a434d54;     // "JCMT"
+    private final static int commitInterval = 1000; // ms between group commits
+
+    private final int start;  // the first block of the log region
+    private final int size;   // # blocks in the log region
+    private int head;         // the next unused log block
+    private int sequence;     // the sequence # of the next transaction
+    private boolean closed;
+
+    // blocks dirtied since the last commit, in the order first written
+    private LinkedHashMap<Integer, byte[]> running;
+    // blocks reused for data since the last commit
+    private TreeSet<Integer> revoked;
+    // blocks in the log but not yet written home
+    private HashMap<Integer, byte[]> committed;
+
+    /**
+     * constructor
+     * a journal kept in blocks start to start + size - 1
+     *
+     * @param start the first block of the log region
+     * @param size the number of blocks in the log region
+     *
+     */
+    public Journal(int start, int size) {
+        this.start = start;
+        this.size = size;
+        head = 1;
+        sequence = 0;
+        closed = false;
+        running = new LinkedHashMap<Integer, byte[]>();
+        revoked = new TreeSet<Integer>();
+        committed = new HashMap<Integer, byte[]>();
+        setDaemon(true);
+    }
+
+    /**
+     * format
+     * empty the log region, discarding whatever it held
+     *
+     */
+    public synchronized void format() {
+        running.clear();
+        revoked.clear();
+        committed.clear();
+        head = 1;
+        // a fresh sequence so no transaction of an older log matches
+        sequence = (int) System.nanoTime();
+        writeHeader();
+    }
+
+    /**
+     * close
+     * stop committing; whatever has not been committed is dropped
+     *
+     */
+    public synchronized void close() {
+        closed = true;
+        running.clear();
+        revoked.clear();
+        committed.clear();
+    }
+
+    /**
+     * read
+     * read block, as last written through the journal
+     *
+     * @param block the file system block
+     * @param b the buffer to fill, one block long
+     *
+     */
+    public synchronized int read(int block, byte[] b) {
+        byte[] image = running.get(block);
+        if (image == null) {
+            image = committed.get(block);
+        }
+        if (image == null) {
+            return Volume.read(block, b);
+        }
+        System.arraycopy(image, 0, b, 0, image.length);
+        return Kernel.OK;
+    }
+
+    /**
+     * write
+     * add the new contents of block to the running transaction
+     *
+     * @param block the file system block
+     * @param b the data, one block long
+     *
+     */
+    public synchronized int write(int block, byte[] b) {
+        running.put(block, b.clone());
+        revoked.remove(block);
+        if (running.size() + revoked.size() >= maxEntries()) {
+            commit();
+        }
+        return Kernel.OK;
+    }
+
+    /**
+     * revoke
+     * forget blocks first to first + count - 1, which now hold file data
+     * written around the journal
+     *
+     * The caller writes the blocks in place as soon as this returns, so a
+     * revoke that drops an older image is committed at once: were it left
+     * for the next commit, a crash in between would replay the image over
+     * the new data.
+     *
+     * @param first the first file system block
+     * @param count the number of blocks
+     *
+     */
+    public synchronized void revoke(int first, int count) {
+        boolean logged = false;
+        for (int block = first; block < first + count; block++) {
+            running.remove(block);
+            if (committed.remove(block) != null) {
+                // an older image is in the log; keep it from being replayed
+                revoked.add(block);
+                logged = true;
+                if (running.size() + revoked.size() >= maxEntries()) {
+                    commit();
+                    logged = false;
+                }
+            }
+        }
+        if (logged) {
+            commit();
+        }
+    }
+
+    /**
+     * commit
+     * append the running transaction to the log
+     *
+     */
+    public synchronized void commit() {
+        if (closed || (running.isEmpty() && revoked.isEmpty())) {
+            return;
+        }
+        int blockSize = Volume.blockSize;
+        int count = running.size();
+        if (head + count + 2 > size) {
+            checkpoint();
+        }
+
+        // descriptor, images and commit block, written with one command
+        byte[] log = new byte[(count + 2) * blockSize];
+        SysLib.int2bytes(descriptorMagic, log, 0);
+        SysLib.int2bytes(sequence, log, 4);
+        SysLib.int2bytes(count, log, 8);
+        SysLib.int2bytes(revoked.size(), log, 12);
+        int offset = 16;
+        int i = 1;
+        for (Map.Entry<Integer, byte[]> e : running.entrySet()) {
+            SysLib.int2bytes(e.getKey(), log, offset);
+            offset += 4;
+            System.arraycopy(e.getValue(), 0, log, i++ * blockSize,
+                             blockSize);
+        }
+        for (int block : revoked) {
+            SysLib.int2bytes(block, log, offset);
+            offset += 4;
+        }
+        int commit = (count + 1) * blockSize;
+        SysLib.int2bytes(commitMagic, log, commit);
+        SysLib.int2bytes(sequence, log, commit + 4);
+        SysLib.int2bytes(checksum(log, commit), log, commit + 8);
+        Volume.write(start + head, log);
+        // a write-back cache must not let the log reach the disk after the
+        // blocks a checkpoint writes home
+        Volume.flush(start + head, count + 2);
+
+        committed.putAll(running);
+        running = new LinkedHashMap<Integer, byte[]>();
+        revoked.clear();
+        head += count + 2;
+        sequence++;
+    }
+
+    /**
+     * recover
+     * replay the transactions committed to the log at its home locations
+     * and empty the log.  Returns true if any block was replayed.
+     *
+     */
+    public synchronized boolean recover() {
+        int blockSize = Volume.blockSize;
+        byte[] header = new byte[blockSize];
+        Volume.read(start, header);
+        if (SysLib.bytes2int(header, 0) != headerMagic) {
+            format();
+            return false;
+        }
+        sequence = SysLib.bytes2int(header, 4);
+
+        TreeMap<Integer, byte[]> replay = new TreeMap<Integer, byte[]>();
+        int position = 1;
+        byte[] descriptor = new byte[blockSize];
+        while (position + 2 <= size) {
+            Volume.read(start + position, descriptor);
+            int count = SysLib.bytes2int(descriptor, 8);
+            if (SysLib.bytes2int(descriptor, 0) != descriptorMagic
+                || SysLib.bytes2int(descriptor, 4) != sequence
+                || count < 0 || position + count + 2 > size) {
+                break;
+            }
+            byte[] log = new byte[(count + 2) * blockSize];
+            System.arraycopy(descriptor, 0, log, 0, blockSize);
+            byte[] rest = new byte[(count + 1) * blockSize];
+            Volume.read(start + position + 1, rest);
+            System.arraycopy(rest, 0, log, blockSize, rest.length);
+            int commit = (count + 1) * blockSize;
+            if (SysLib.bytes2int(log, commit) != commitMagic
+                || SysLib.bytes2int(log, commit + 4) != sequence
+                || SysLib.bytes2int(log, commit + 8)
+                   != checksum(log, commit)) {
+                break; // never committed
+            }
+
+            int revokes = SysLib.bytes2int(log, 12);
+            for (int i = 0; i < revokes; i++) {
+                replay.remove(SysLib.bytes2int(log, 16 + (count + i) * 4));
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] image = new byte[blockSize];
+                System.arraycopy(log, (i + 1) * blockSize, image, 0,
+                                 blockSize);
+                replay.put(SysLib.bytes2int(log, 16 + i * 4), image);
+            }
+            position += count + 2;
+            sequence++;
+        }
+
+        writeHome(replay);
+        head = 1;
+        writeHeader();
+        return !replay.isEmpty();
+    }
+
+    // commit the running transaction every commitInterval ms
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(commitInterval);
+            } catch (InterruptedException e) {
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                commit();
+            }
+        }
+    }
+
+    // write the committed blocks home and start the log over
+    private void checkpoint() {
+        writeHome(new TreeMap<Integer, byte[]>(committed));
+        committed.clear();
+        head = 1;
+        writeHeader();
+    }
+
+    // write blocks home, each run of consecutive blocks with one command
+    private void writeHome(TreeMap<Integer, byte[]> blocks) {
+        int blockSize = Volume.blockSize;
+        Integer first = blocks.isEmpty() ? null : blocks.firstKey();
+        while (first != null) {
+            int last = first;
+            while (blocks.containsKey(last + 1)) {
+                last++;
+            }
+            byte[] run = new byte[(last - first + 1) * blockSize];
+            for (int block = first; block <= last; block++) {
+                System.arraycopy(blocks.get(block), 0, run,
+                                 (block - first) * blockSize, blockSize);
+            }
+            Volume.write(first, run);
+            // ... nor the header that empties the log before those blocks
+            Volume.flush(first, last - first + 1);
+            first = blocks.higherKey(last);
+        }
+    }
+
+    private void writeHeader() {
+        byte[] header = new byte[Volume.blockSize];
+        SysLib.int2bytes(headerMagic, header, 0);
+        SysLib.int2bytes(sequence, header, 4);
+        Volume.write(start, header);
+        // the log written after it carries the new sequence
+        Volume.flush(start, 1);
+    }
+
+    // # blocks and revoked blocks one descriptor (and the log) can hold
+    private int maxEntries() {
+        return Math.min((Volume.blockSize - 16) / 4, size - 3);
+    }
+
+    private static int checksum(byte[] b, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, length);
+        return (int) crc.getValue();
+    }
+}
@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.lang.reflect.*;
 import java.io.*;
 
@@ -36,6 +37,36 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Vectored raw I/O: a run of consecutive blocks in one disk command
+   public final static int RAWREADV  = 20; // SysLib.rawreadv(int blk, byte b[])
+   public final static int RAWWRITEV = 21; // SysLib.rawwritev(int blk, byte b[])
+
+   // Asynchronous raw I/O: returns once the disk accepted the request
+   public final static int RAWREADA  = 22; // SysLib.rawreadAsync(int blk, b[])
+   public final static int RAWWRITEA = 23; // SysLib.rawwriteAsync(int blk, b[])
+
+   // Disk instrumentation: args = StringBuffer to append a report to
+   public final static int DISKSTATS = 24; // SysLib.diskstats(StringBuffer b)
+
+   // Access hints: args = { offset, length, advice } or { count, advice }
+   public final static int FADVISE = 25; // SysLib.fadvise(int fd, int offset,
+   //              int len, int advice)
+   public final static int CADVISE = 26; // SysLib.cadvise(int blk, int count,
+   //              int advice)
+
+   // SysLib.sync( false ): return before the disk flush has completed
+   public final static int SYNC_NOWAIT = 1;
+
+   // SysLib.diskstats( b, true ): start counting over after the report
+   public final static int STATS_RESET = 1;
+
+   // Advice for SysLib.fadvise( ) and SysLib.cadvise( )
+   public final static int ADVISE_NORMAL     = 0; // no particular order
+   public final static int ADVISE_SEQUENTIAL = 1; // read once, front to back
+   public final static int ADVISE_RANDOM     = 2; // no order to read ahead for
+   public final static int ADVISE_WILLNEED   = 3; // read it ahead now
+   public final static int ADVISE_DONTNEED   = 4; // not needed again soon
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -47,7 +78,7 @@ public class Kernel
 
    // System thread references
    private static Scheduler scheduler;
-   private static Disk disk;
+   private static BlockDevice disk;
    private static Cache cache;
 
    // Synchronized Queues
@@ -58,7 +89,14 @@ public class Kernel
    private static FileSystem fs;
 
    private final static int COND_DISK_REQ = 1; // wait condition 
-   private final static int COND_DISK_FIN = 2; // wait condition
+
+   // How long threads wait in raw I/O calls: for the disk to accept a
+   // request (COND_DISK_REQ) and for the request to complete
+   private static Histogram acceptWaits = new Histogram( "us" );
+   private static Histogram completionWaits = new Histogram( "us" );
+
+   // Boot options given as name=value on the Boot command line
+   private static String bootArgs[] = new String[0];
 
    // Standard input
    private static BufferedReader input
@@ -67,27 +105,61 @@ public class Kernel
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
+      DiskRequest request;
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
                case BOOT:
+                  if ( args != null )
+                     bootArgs = ( String[] )args;
+
                   // instantiate and start a scheduler
                   scheduler = new Scheduler( ); 
                   scheduler.start( );
 
-                  // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  // instantiate and start a disk of blocks=n blocks, or a
+                  // RAID-0 volume of raid0=n disks; load=lazy reads the
+                  // image on demand rather than before going on
+                  int diskBlocks = Integer.parseInt( bootOption( "blocks",
+                                                                 "1000" ) );
+                  int stripes = Integer.parseInt( bootOption( "raid0", "1" ) );
+                  boolean lazy = bootOption( "load", "eager" ).equals( "lazy" );
+                  if ( stripes > 1 )
+                     disk = new StripedDisk( diskBlocks, stripes,
+                                             bootOption( "disk", "heap" ),
+                                             bootOption( "model", "hdd" ),
+                                             lazy );
+                  else
+                     disk = new Disk( diskBlocks, "DISK",
+                                      bootOption( "disk", "heap" ),
+                                      bootOption( "model", "hdd" ), lazy );
                   disk.start( );
 
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  // instantiate a cache memory of cache=n MB, counted in
+                  // long as the bytes of a few GB overflow an int
+                  long cacheBlocks = Long.parseLong( bootOption( "cache",
+                                                                 "1" ) ) *
+                     ( 1 << 20 ) / Disk.blockSize;
+                  if ( cacheBlocks > Integer.MAX_VALUE ) {
+                     SysLib.cerr( "threadOS: cache=" + bootOption( "cache",
+                                                                   "1" ) +
+                                  " is too large, using 1MB\n" );
+                     cacheBlocks = ( 1 << 20 ) / Disk.blockSize;
+                  }
+                  cache = new Cache( Disk.blockSize,
+                                     ( int )Math.max( cacheBlocks, 1 ),
+                                     bootOption( "cachepolicy", "clock" ) );
+
+                  // fscache=on puts the file system behind the cache too
+                  Volume.cache = bootOption( "fscache", "off" ).equals( "on" )
+                                 ? cache : null;
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 
                   // instantiate a file system;
-                  fs = new FileSystem( 1000 );
+                  fs = new FileSystem( diskBlocks );
 
                   return OK;
                case EXEC:
@@ -116,23 +188,62 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  while ( ( request = disk.read( param, ( byte[] )args ) )
+                          == null )
+                     waitForRoom( );
+                  return waitForDisk( request ); // woken up by its interrupt
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  while ( ( request = disk.write( param, ( byte[] )args ) )
+                          == null )
+                     waitForRoom( );
+                  return waitForDisk( request );
+               case RAWREADV: // read b.length / blockSize blocks from disk
+                  while ( ( request = disk.readv( param, ( byte[] )args ) )
+                          == null )
+                     waitForRoom( );
+                  return waitForDisk( request );
+               case RAWWRITEV: // write b.length / blockSize blocks to disk
+                  while ( ( request = disk.writev( param, ( byte[] )args ) )
+                          == null )
+                     waitForRoom( );
+                  return waitForDisk( request );
+               case RAWREADA: // args = { byte b[], future to complete }
+                  Object[] readArgs = ( Object[] )args;
+                  while ( ( request = disk.readv( param,
+                                 ( byte[] )readArgs[0] ) ) == null )
+                     waitForRoom( );
+                  request.attach( futureOf( readArgs ) );
+                  return OK; // completed later by its disk interrupt
+               case RAWWRITEA: // args = { byte b[], future to complete }
+                  Object[] writeArgs = ( Object[] )args;
+                  while ( ( request = disk.writev( param,
+                                 ( byte[] )writeArgs[0] ) ) == null )
+                     waitForRoom( );
+                  request.attach( futureOf( writeArgs ) );
                   return OK;
                case SYNC:     // synchronize disk data to a real file
                   fs.sync( );
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  while ( ( request = disk.sync( ) ) == null )
+                     waitForRoom( );
+                  // the disk flushes in the background; wait for it only
+                  // if the caller needs the data to be durable
+                  if ( param == SYNC_NOWAIT )
+                     return OK;
+                  return waitForDisk( request );
+               case DISKSTATS: // args = StringBuffer to append to
+                  StringBuffer report = ( StringBuffer )args;
+                  disk.report( report );
+                  report.append( "waiting for the disk to accept: " +
+                                 acceptWaits );
+                  report.append( "waiting for the disk to complete: " +
+                                 completionWaits );
+                  cache.report( report );
+                  if ( param == STATS_RESET ) {
+                     disk.resetStats( );
+                     cache.resetStats( );
+                     acceptWaits.reset( );
+                     completionWaits.reset( );
+                  }
                   return OK;
                case READ:
                   switch ( param ) {
@@ -193,6 +304,10 @@ public class Kernel
                case CFLUSH:  // to be implemented in assignment 4
                   cache.flush( );
                   return OK;
+               case CADVISE: // args = { count, advice }
+                  int[] cadviseArgs = ( int[] )args;
+                  return cache.advise( param, cadviseArgs[0],
+                                       cadviseArgs[1] ) ? OK : ERROR;
                case OPEN:    // to be implemented in project
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
                      String[] s = ( String[] )args;
@@ -224,15 +339,31 @@ public class Kernel
                         return fs.seek( ftEnt, seekArgs[0], seekArgs[1] );
                   } 
                   return ERROR;
-               case FORMAT:  // to be implemented in project
-                  return ( fs.format( param ) == true ) ? OK : ERROR;
+               case FADVISE: // args = { offset, length, advice }
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     int[] fadviseArgs = ( int[] )args;
+                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null &&
+                          fs.fadvise( ftEnt, fadviseArgs[0], fadviseArgs[1],
+                                      fadviseArgs[2] ) )
+                        return OK;
+                  }
+                  return ERROR;
+               case FORMAT:  // args = { block size, revision } or null
+                  int blockSize = ( args != null ) ? ( ( int[] )args )[0]
+                                                   : Disk.blockSize;
+                  int revision = ( args != null && ( ( int[] )args ).length > 1 )
+                                 ? ( ( int[] )args )[1] : 0;
+                  return ( fs.format( param, blockSize, revision ) == true ) ?
+                     OK : ERROR;
                case DELETE:  // to be implemented in project
                   return ( fs.delete( (String)args ) == true ) ? OK : ERROR;
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
+            // wake up the thread waiting for this request's completion
+            if ( args != null )
+               ( ( DiskRequest )args ).finish( );
 
             // wake up the thread waiting for a request acceptance
             ioQueue.dequeueAndWakeup( COND_DISK_REQ );
@@ -244,6 +375,44 @@ public class Kernel
       return OK;
    }
 
+   // Sleeping until the disk may have room for another request
+   private static void waitForRoom( ) {
+      long start = System.nanoTime( );
+      ioQueue.enqueueAndSleep( COND_DISK_REQ );
+      acceptWaits.record( ( System.nanoTime( ) - start ) / 1000 );
+   }
+
+   // Sleeping until request has been served
+   private static int waitForDisk( DiskRequest request ) {
+      long start = System.nanoTime( );
+      int status = request.waitFor( );
+      completionWaits.record( ( System.nanoTime( ) - start ) / 1000 );
+      return status;
+   }
+
+   // The future SysLib.rawreadAsync( ) or rawwriteAsync( ) passes along
+   // with its buffer, which only they build
+   @SuppressWarnings( "unchecked" )
+   private static CompletableFuture<Integer> futureOf( Object args[] ) {
+      return ( CompletableFuture<Integer> )args[1];
+   }
+
+   // Looking up a boot option, e.g. "disk=mmap" selects a mapped DISK,
+   // "disk=sparse" one allocated on write, "load=lazy" one loaded on
+   // demand, "blocks=8388608" a 4GB disk (sparse only: heap and mmap stop
+   // below 2GB), "model=ssd" an SSD latency model,
+   // "raid0=4" a volume striped over DISK0 to DISK3, "cache=64" a 64MB
+   // buffer cache, "cachepolicy=arc" (or 2q) a scan-resistant one and
+   // "fscache=on" file system I/O through that cache, which also lets
+   // SysLib.fadvise( ) hints act on files
+   private static String bootOption( String name, String defaultValue ) {
+      String prefix = name + "=";
+      for ( int i = 0; i < bootArgs.length; i++ )
+         if ( bootArgs[i].startsWith( prefix ) )
+            return bootArgs[i].substring( prefix.length( ) );
+      return defaultValue;
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
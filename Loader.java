@@ -15,6 +15,8 @@ public class Loader extends Thread
 	SysLib.cout( "?:       print a help message\n" );
 	SysLib.cout( "q:       exit from threadOS\n" );
 	SysLib.cout( "l prog:  load prog\n" );
+	SysLib.cout( "d:       dump disk statistics\n" );
+	SysLib.cout( "d reset: dump disk statistics and reset them\n" );
     }
 
     public void run( ) {
@@ -47,6 +49,12 @@ public class Loader extends Thread
 		}
 		SysLib.join( );
 		break;
+	    case 'd':
+		StringBuffer stats = new StringBuffer( );
+		SysLib.diskstats( stats, cmdLine.substring( 1 ).trim( )
+				  .equals( "reset" ) );
+		SysLib.cout( stats.toString( ) );
+		break;
 	    case 'r':
 		break;
 	    }
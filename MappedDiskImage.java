@@ -0,0 +1,64 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * MappedDiskImage
+ * maps the host file into memory with FileChannel.map and serves blocks
+ * straight out of the mapping.  Boot does not read the file, the heap does
+ * not grow with the disk, and a sync only forces the pages of blocks
+ * written since the previous snapshot.
+ */
+public class MappedDiskImage extends DiskImage {
+   private MappedByteBuffer mapped; // the whole host file
+   private BitSet dirty;            // blocks written since the last snapshot
+
+   // throws IOException if the host file cannot be mapped, for
+   // DiskImage.create to fall back on a heap image
+   public MappedDiskImage( String fileName, int diskSize )
+      throws IOException {
+      super( fileName, diskSize );
+      dirty = new BitSet( diskSize );
+      int size = diskSize * Disk.blockSize;
+      File file = new File( fileName );
+      if ( !file.exists( ) )
+         SysLib.cerr( "threadOS: " + fileName + " created\n" );
+      RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+      try {
+         if ( raf.length( ) < size )
+            raf.setLength( size ); // the new tail reads as zeros
+         mapped = raf.getChannel( ).map( FileChannel.MapMode.READ_WRITE,
+                                         0, size );
+      } finally {
+         raf.close( ); // the mapping stays valid without the channel
+      }
+   }
+
+   public void read( int blockId, byte buffer[], int offset ) {
+      mapped.get( blockId * Disk.blockSize, buffer, offset, Disk.blockSize );
+   }
+
+   public synchronized void write( int blockId, byte buffer[], int offset ) {
+      mapped.put( blockId * Disk.blockSize, buffer, offset, Disk.blockSize );
+      dirty.set( blockId );
+   }
+
+   public synchronized Runnable snapshot( ) {
+      final BitSet blocks = dirty;
+      dirty = new BitSet( diskSize );
+      return new Runnable( ) {
+         // force each run of consecutive dirty blocks with one call; the
+         // pages may hold newer data by now, which is just as durable
+         public void run( ) {
+            int first = blocks.nextSetBit( 0 );
+            while ( first >= 0 ) {
+               int last = blocks.nextClearBit( first );
+               mapped.force( first * Disk.blockSize,
+                             ( last - first ) * Disk.blockSize );
+               first = blocks.nextSetBit( last );
+            }
+         }
+      };
+   }
+}
@@ -0,0 +1,293 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * SparseDiskImage
+ * keeps the volume in fixed-size chunks that are only allocated when a
+ * block in them is first written with something other than zeros.  Blocks
+ * of a chunk never written read as zeros, so the heap grows with the data
+ * actually stored rather than with the size of the disk, and multi-GB
+ * volumes can be booted.  Syncs use the copy-on-write snapshots of
+ * DiskImage.
+ *
+ * The host file is packed the same way: only chunks that ever held data
+ * are stored, each in a slot, and a map says which slot holds which chunk.
+ * Boot reads just the stored chunks and a sync writes just the dirty
+ * blocks, so both scale with the space in use, not the size of the disk.
+ *
+ *   header  (one block) magic, version, # chunks, chunkBlocks, # slots
+ *   map     one int per chunk: its slot + 1, or 0 if it has none
+ *   slots   chunkBlocks blocks each, from the block after the map on
+ *
+ * A raw image, or one packed for another disk size, is converted at boot.
+ * Otherwise a lazy image only reads the map at boot and loads each chunk
+ * on demand.
+ */
+public class SparseDiskImage extends DiskImage {
+   public final static int chunkBlocks = 64; // blocks per chunk
+   private final static int magic = 0x54535044; // "TSPD"
+   private final static int version = 1;
+
+   private byte chunks[][];  // null until a chunk holds data
+   private int slots[];      // each chunk's slot + 1, 0 if not stored yet
+   private int usedSlots;    // # slots in the host file
+   private BitSet mapDirty;  // chunks given a slot since the last sync
+
+   public SparseDiskImage( String fileName, int diskSize, boolean lazy ) {
+      super( fileName, diskSize );
+      chunks = new byte[( diskSize + chunkBlocks - 1 ) / chunkBlocks][];
+      slots = new int[chunks.length];
+      usedSlots = 0;
+      mapDirty = new BitSet( );
+      boolean lazily = false;
+      try {
+         File file = new File( fileName );
+         if ( isPacked( fileName ) ) {
+            if ( !load( lazy ) )
+               convert( );
+            else
+               lazily = lazy;
+         } else if ( file.length( ) > 0 ) {
+            loadRaw( );
+            convert( );
+         } else {
+            SysLib.cerr( "threadOS: " + fileName + " created\n" );
+            convert( );
+         }
+      } catch ( IOException e ) {
+         SysLib.cerr( e.toString( ) + "\n" );
+      }
+      openChannel( );
+      if ( lazily && channel != null )
+         loadLazily( chunks.length, chunkBlocks );
+   }
+
+   // whether fileName holds a packed image
+   public static boolean isPacked( String fileName ) {
+      try {
+         DataInputStream in =
+            new DataInputStream( new FileInputStream( fileName ) );
+         byte header[] = new byte[8];
+         boolean packed = in.read( header ) == 8 &&
+            SysLib.bytes2int( header, 0 ) == magic &&
+            SysLib.bytes2int( header, 4 ) == version;
+         in.close( );
+         return packed;
+      } catch ( IOException e ) {
+         return false;
+      }
+   }
+
+   // the host file offset of slot 0 for a map of mapChunks chunks
+   private static long dataStart( int mapChunks ) {
+      long mapBlocks = ( mapChunks * 4L + Disk.blockSize - 1 ) /
+         Disk.blockSize;
+      return ( 1 + mapBlocks ) * Disk.blockSize;
+   }
+
+   // read the map of a packed image and, unless lazy, the stored chunks;
+   // false if it was packed with another geometry and has to be converted
+   private boolean load( boolean lazy ) throws IOException {
+      FileChannel in = new RandomAccessFile( fileName, "r" ).getChannel( );
+      ByteBuffer header = ByteBuffer.allocate( Disk.blockSize );
+      in.read( header, 0 );
+      int mapChunks = SysLib.bytes2int( header.array( ), 8 );
+      int mapChunkBlocks = SysLib.bytes2int( header.array( ), 12 );
+      ByteBuffer map = ByteBuffer.allocate( mapChunks * 4 );
+      readFully( in, map, Disk.blockSize );
+
+      boolean same = mapChunks == chunks.length &&
+         mapChunkBlocks == chunkBlocks;
+      int chunkSize = mapChunkBlocks * Disk.blockSize;
+      ByteBuffer chunk = ByteBuffer.allocate( chunkSize );
+      for ( int c = 0; c < mapChunks; c++ ) {
+         int slot = SysLib.bytes2int( map.array( ), c * 4 );
+         if ( slot == 0 )
+            continue;
+         if ( same && lazy ) {
+            slots[c] = slot; // loaded by load( c ) when first needed
+            usedSlots = Math.max( usedSlots, slot );
+            continue;
+         }
+         chunk.clear( );
+         readFully( in, chunk,
+                    dataStart( mapChunks ) + ( long )( slot - 1 ) * chunkSize );
+         for ( int i = 0; i < mapChunkBlocks; i++ )
+            put( c * mapChunkBlocks + i, chunk.array( ), i * Disk.blockSize );
+         if ( same ) {
+            slots[c] = slot;
+            usedSlots = Math.max( usedSlots, slot );
+         }
+      }
+      in.close( );
+      return same;
+   }
+
+   // read a stored chunk of a lazy image
+   protected void load( int chunk ) throws IOException {
+      if ( slots[chunk] == 0 )
+         return;
+      ByteBuffer buffer = ByteBuffer.allocate( chunkBlocks * Disk.blockSize );
+      readFully( channel, buffer, slotOffset( chunk ) );
+      for ( int i = 0; i < chunkBlocks; i++ )
+         put( chunk * chunkBlocks + i, buffer.array( ), i * Disk.blockSize );
+   }
+
+   // read an old raw image a chunk at a time, keeping chunks with data
+   private void loadRaw( ) throws IOException {
+      FileChannel in = new RandomAccessFile( fileName, "r" ).getChannel( );
+      int chunkSize = chunkBlocks * Disk.blockSize;
+      ByteBuffer chunk = ByteBuffer.allocate( chunkSize );
+      for ( int c = 0; c < chunks.length; c++ ) {
+         long position = ( long )c * chunkSize;
+         if ( position >= in.size( ) )
+            break;
+         chunk.clear( );
+         readFully( in, chunk, position );
+         for ( int i = 0; i < chunkBlocks; i++ )
+            put( c * chunkBlocks + i, chunk.array( ), i * Disk.blockSize );
+      }
+      in.close( );
+   }
+
+   // rewrite the host file packed with this image's geometry, replacing
+   // the old file only once the new one is complete
+   private void convert( ) throws IOException {
+      File temp = new File( fileName + ".new" );
+      RandomAccessFile raf = new RandomAccessFile( temp, "rw" );
+      raf.setLength( 0 );
+      FileChannel out = raf.getChannel( );
+      Arrays.fill( slots, 0 );
+      usedSlots = 0;
+      for ( int c = 0; c < chunks.length; c++ ) {
+         if ( chunks[c] == null )
+            continue;
+         slots[c] = ++usedSlots;
+         out.write( ByteBuffer.wrap( chunks[c] ), slotOffset( c ) );
+      }
+      ByteBuffer map = ByteBuffer.allocate( slots.length * 4 );
+      for ( int c = 0; c < slots.length; c++ )
+         SysLib.int2bytes( slots[c], map.array( ), c * 4 );
+      out.write( map, Disk.blockSize );
+      out.write( header( ), 0 );
+      out.force( true );
+      raf.close( );
+      Files.move( temp.toPath( ), Paths.get( fileName ),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE );
+      mapDirty.clear( );
+   }
+
+   private ByteBuffer header( ) {
+      byte header[] = new byte[Disk.blockSize];
+      SysLib.int2bytes( magic, header, 0 );
+      SysLib.int2bytes( version, header, 4 );
+      SysLib.int2bytes( chunks.length, header, 8 );
+      SysLib.int2bytes( chunkBlocks, header, 12 );
+      SysLib.int2bytes( usedSlots, header, 16 );
+      return ByteBuffer.wrap( header );
+   }
+
+   private long slotOffset( int chunk ) {
+      return dataStart( chunks.length ) +
+         ( long )( slots[chunk] - 1 ) * chunkBlocks * Disk.blockSize;
+   }
+
+   private static void readFully( FileChannel in, ByteBuffer buffer,
+                                  long position ) throws IOException {
+      while ( buffer.hasRemaining( ) &&
+              in.read( buffer, position + buffer.position( ) ) > 0 )
+         ;
+   }
+
+   private static boolean isZero( byte buffer[], int offset, int length ) {
+      for ( int i = offset; i < offset + length; i++ )
+         if ( buffer[i] != 0 )
+            return false;
+      return true;
+   }
+
+   // store a block as loaded, allocating its chunk only for data
+   private void put( int blockId, byte buffer[], int offset ) {
+      if ( blockId >= diskSize )
+         return;
+      byte chunk[] = chunks[blockId / chunkBlocks];
+      if ( chunk == null ) {
+         if ( isZero( buffer, offset, Disk.blockSize ) )
+            return;
+         chunk = new byte[chunkBlocks * Disk.blockSize];
+         chunks[blockId / chunkBlocks] = chunk;
+      }
+      System.arraycopy( buffer, offset, 
+            chunk, ( blockId % chunkBlocks ) * Disk.blockSize,
+            Disk.blockSize );
+   }
+
+   public void read( int blockId, byte buffer[], int offset ) {
+      fault( blockId );
+      byte chunk[] = chunks[blockId / chunkBlocks];
+      if ( chunk == null )
+         Arrays.fill( buffer, offset, offset + Disk.blockSize, ( byte )0 );
+      else
+         System.arraycopy( chunk, ( blockId % chunkBlocks ) * Disk.blockSize,
+                           buffer, offset, Disk.blockSize );
+   }
+
+   public synchronized void write( int blockId, byte buffer[], int offset ) {
+      fault( blockId );
+      byte chunk[] = chunks[blockId / chunkBlocks];
+      if ( chunk == null ) {
+         if ( isZero( buffer, offset, Disk.blockSize ) )
+            return; // already reads as zeros, on disk and in memory
+         chunk = new byte[chunkBlocks * Disk.blockSize];
+         chunks[blockId / chunkBlocks] = chunk;
+      }
+      beforeWrite( blockId );
+      System.arraycopy( buffer, offset, 
+            chunk, ( blockId % chunkBlocks ) * Disk.blockSize,
+            Disk.blockSize );
+   }
+
+   // write each chunk's part of the run into its slot, giving the chunk a
+   // slot at the end of the file if it has none yet
+   protected void store( int blockId, int count, byte run[] )
+      throws IOException {
+      int done = 0;
+      while ( done < count ) {
+         int block = blockId + done;
+         int c = block / chunkBlocks;
+         int n = Math.min( count - done, chunkBlocks - block % chunkBlocks );
+         if ( slots[c] == 0 ) {
+            slots[c] = ++usedSlots;
+            mapDirty.set( c );
+         }
+         channel.write( ByteBuffer.wrap( run, done * Disk.blockSize,
+                                         n * Disk.blockSize ),
+                        slotOffset( c ) +
+                        ( block % chunkBlocks ) * Disk.blockSize );
+         done += n;
+      }
+   }
+
+   // The new slots' data is written; now point the map at them.  Each
+   // step is forced to the host disk before the next one starts, so the
+   // map never reaches it ahead of the data it points to, nor the header
+   // ahead of the map.
+   protected void stored( ) throws IOException {
+      if ( mapDirty.isEmpty( ) )
+         return;
+      channel.force( false );
+      for ( int c = mapDirty.nextSetBit( 0 ); c >= 0;
+            c = mapDirty.nextSetBit( c + 1 ) ) {
+         byte entry[] = new byte[4];
+         SysLib.int2bytes( slots[c], entry, 0 );
+         channel.write( ByteBuffer.wrap( entry ), Disk.blockSize + c * 4L );
+      }
+      channel.force( false );
+      channel.write( header( ), 0 );
+      mapDirty.clear( );
+   }
+}
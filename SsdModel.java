@@ -0,0 +1,28 @@
+/**
+ * SsdModel
+ * a flash device: a small flat latency per command wherever the blocks
+ * are, plus a short transfer time per block.  There is no seek penalty.
+ */
+public class SsdModel implements DiskModel {
+   private final long commandLatency = 100; // microseconds per command
+   private final long blockTransfer = 5;    // microseconds per block
+   private Histogram serviceTimes;
+
+   public SsdModel( ) {
+      serviceTimes = new Histogram( "us" );
+   }
+
+   public long serviceTime( int headBlockId, int blockId, int count ) {
+      long time = commandLatency + count * blockTransfer;
+      serviceTimes.record( time );
+      return time;
+   }
+
+   public Histogram getServiceTimes( ) {
+      return serviceTimes;
+   }
+
+   public String getName( ) {
+      return "ssd";
+   }
+}
@@ -0,0 +1,171 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * StripedDisk
+ * a RAID-0 volume over several Disks, each with its own image file and
+ * thread.  Block b lives on member b % stripes as its block b / stripes, so
+ * a run of blocks becomes one vectored request per member, and the members
+ * serve their parts in parallel.  The volume's own request is finished with
+ * a disk interrupt once the last part is done.
+ */
+public class StripedDisk implements BlockDevice {
+   private Disk members[];
+   private int diskSize;
+
+   public StripedDisk( int totalBlocks, int stripes, String imageType,
+                       String modelType, boolean lazy ) {
+      diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+      members = new Disk[stripes];
+      int memberSize = ( diskSize + stripes - 1 ) / stripes;
+      for ( int i = 0; i < stripes; i++ )
+         members[i] = new Disk( memberSize, "DISK" + i, imageType,
+                                modelType, lazy );
+   }
+
+   public void start( ) {
+      for ( int i = 0; i < members.length; i++ )
+         members[i].start( );
+   }
+
+   public Disk[] getMembers( ) {
+      return members;
+   }
+
+   public void report( StringBuffer out ) {
+      out.append( "raid0 volume, " + diskSize + " blocks over " +
+                  members.length + " disks\n" );
+      for ( int i = 0; i < members.length; i++ )
+         members[i].report( out );
+   }
+
+   public void resetStats( ) {
+      for ( int i = 0; i < members.length; i++ )
+         members[i].resetStats( );
+   }
+
+   public DiskRequest read( int blockId, byte buffer[] ) {
+      return transfer( DiskRequest.READ, blockId, 1, buffer );
+   }
+
+   public DiskRequest write( int blockId, byte buffer[] ) {
+      return transfer( DiskRequest.WRITE, blockId, 1, buffer );
+   }
+
+   public DiskRequest readv( int blockId, byte buffer[] ) {
+      return transfer( DiskRequest.READ, blockId,
+                       buffer.length / Disk.blockSize, buffer );
+   }
+
+   public DiskRequest writev( int blockId, byte buffer[] ) {
+      return transfer( DiskRequest.WRITE, blockId,
+                       buffer.length / Disk.blockSize, buffer );
+   }
+
+   public synchronized DiskRequest sync( ) {
+      // members are only ever fed from here, so their room cannot shrink
+      // between this check and the requests below
+      for ( int i = 0; i < members.length; i++ )
+         if ( !members[i].hasRoom( ) )
+            return null;
+      DiskRequest request = new DiskRequest( DiskRequest.SYNC, 0, 0, null,
+                                             0, 0 );
+      Part parts[] = new Part[members.length];
+      for ( int i = 0; i < members.length; i++ ) {
+         parts[i] = new Part( i, 0, 0, null );
+         members[i].sync( ).attach( parts[i].done );
+      }
+      whenDone( request, parts );
+      return request;
+   }
+
+   private synchronized DiskRequest transfer( int command, int blockId,
+                                              int count, byte buffer[] ) {
+      DiskRequest request = new DiskRequest( command, blockId, count,
+                                             buffer, 0, 0 );
+      if ( blockId < 0 || count < 1 || blockId + count > diskSize ||
+           buffer.length < count * Disk.blockSize ) {
+         SysLib.cerr( "threadOS: a wrong blockId for " +
+                      ( command == DiskRequest.READ ? "read\n" : "write\n" ) );
+         request.fail( );
+         return request;
+      }
+
+      // the blocks of [blockId, blockId + count) on each member
+      int stripes = members.length;
+      Part parts[] = new Part[Math.min( stripes, count )];
+      for ( int i = 0; i < parts.length; i++ ) {
+         int first = blockId + i;
+         int n = ( blockId + count - 1 - first ) / stripes + 1;
+         parts[i] = new Part( first % stripes, first, n,
+                              new byte[n * Disk.blockSize] );
+         if ( !members[parts[i].member].hasRoom( ) )
+            return null;
+      }
+
+      for ( int i = 0; i < parts.length; i++ ) {
+         Part part = parts[i];
+         Disk member = members[part.member];
+         DiskRequest sub;
+         if ( command == DiskRequest.READ ) {
+            sub = member.readv( part.first / stripes, part.data );
+         } else {
+            part.copy( buffer, blockId, stripes, true );
+            sub = member.writev( part.first / stripes, part.data );
+         }
+         sub.attach( part.done );
+      }
+      whenDone( request, parts );
+      return request;
+   }
+
+   // once every part is done, scatter what was read and raise the
+   // interrupt for the volume's request
+   private void whenDone( final DiskRequest request, final Part parts[] ) {
+      CompletableFuture<?> done[] = new CompletableFuture<?>[parts.length];
+      for ( int i = 0; i < parts.length; i++ )
+         done[i] = parts[i].done;
+      CompletableFuture.allOf( done ).thenRun( new Runnable( ) {
+         public void run( ) {
+            for ( int i = 0; i < parts.length; i++ ) {
+               if ( parts[i].done.join( ) != Kernel.OK )
+                  request.markFailed( );
+               else if ( request.command == DiskRequest.READ )
+                  parts[i].copy( request.buffer, request.blockId,
+                                 members.length, false );
+            }
+            SysLib.disk( request ); // a disk interrupt
+         }
+      } );
+   }
+
+   // the share of one request that falls on one member
+   private static class Part {
+      final int member;  // which member
+      final int first;   // the first volume block on that member
+      final int count;   // # blocks on that member
+      final byte data[]; // their contents, consecutive on the member
+      final CompletableFuture<Integer> done;
+
+      Part( int member, int first, int count, byte data[] ) {
+         this.member = member;
+         this.first = first;
+         this.count = count;
+         this.data = data;
+         done = new CompletableFuture<Integer>( );
+      }
+
+      // gather this part's blocks from, or scatter them into, the buffer
+      // of a request starting at volume block blockId
+      void copy( byte buffer[], int blockId, int stripes, boolean gather ) {
+         for ( int k = 0; k < count; k++ ) {
+            int offset = ( first + k * stripes - blockId ) * Disk.blockSize;
+            if ( gather )
+               System.arraycopy( buffer, offset, data, k * Disk.blockSize,
+                                 Disk.blockSize );
+            else
+               System.arraycopy( data, k * Disk.blockSize, buffer, offset,
+                                 Disk.blockSize );
+         }
+      }
+   }
+}
@@ -2,139 +2,334 @@
  * class SuperBlock
  * intantiated by FileSystem at block 0.  Describes for the rest of the system
  * the number of disk blocks, inodes, and the block number of the head block of
- * the free list.  No other threads may access SuperBlock.
+ * the free list.  No other threads may access SuperBlock.  Updates to the
+ * superblock and the free list go through the metadata journal.
  */
-import java.util.Arrays;
-
 public class SuperBlock {
 
 	private final int defaultInodeBlocks = 64;
-	public int totalBlocks; // the number of disk blocks
+	private final int formatBatch = 100; // blocks per vectored write in format
+	private final int maxJournalBlocks = 256; // the log takes 1/16 up to this
+	private final int maxRun = 1024; // blocks handed out by one getFreeRun
+	public int totalBlocks; // the number of file system blocks
 	public int totalInodes; // the number of inodes
 	public int freeList;    // the block number of the free list's head
+	public int blockSize;   // bytes per file system block, 0 on old disks
+	public int revision;    // the on-disk format, 0 on old disks
+	public int highWater;   // blocks from here on were never allocated
+	public int journalStart;  // the first block of the journal
+	public int journalBlocks; // # blocks in the journal, 0 on old disks
+	private int diskSize;   // the number of disk blocks
 
     // Default constructor
 	public SuperBlock(int diskSize) {
-		// read the superblock from disk
-		byte[] superblock = new byte[Disk.blockSize];
-		SysLib.rawread( 0, superblock );
-		totalBlocks = SysLib.bytes2int( superblock, 0 );
-		totalInodes = SysLib.bytes2int( superblock, 4 );
-		freeList = SysLib.bytes2int( superblock, 8 );
+		this.diskSize = diskSize;
+		load();
 
-	    if ( totalBlocks == diskSize && totalInodes > 0 && freeList >= 2) {
+	    if ( Volume.isBlockSize( blockSize ) && Volume.isRevision( revision ) &&
+	         totalBlocks == diskSize / ( blockSize / Disk.blockSize ) &&
+	         totalInodes > 0 && ( freeList >= 2 || freeList == -1 ) &&
+	         journalBlocks >= 0 && journalStart + journalBlocks <= totalBlocks &&
+	         highWater >= 2 && highWater <= dataBlocks() ) {
             // disk contents are valid
+            Volume.blockSize = blockSize;
+            Volume.revision = revision;
+            // finish the metadata updates committed before shutdown
+            Journal journal = openJournal( );
+            if ( journal != null && journal.recover( ) ) {
+                load( );
+            }
             return;
         }
 		else {
 			// need to format disk
-			totalBlocks = diskSize;
-			format( defaultInodeBlocks );
+			format( defaultInodeBlocks, Disk.blockSize );
+		}
+	}
+
+    // read the superblock from its home, it fits in the first disk block
+	private void load() {
+		byte[] superblock = new byte[Disk.blockSize];
+		Volume.read( 0, superblock );
+		totalBlocks = SysLib.bytes2int( superblock, 0 );
+		totalInodes = SysLib.bytes2int( superblock, 4 );
+		freeList = SysLib.bytes2int( superblock, 8 );
+		blockSize = SysLib.bytes2int( superblock, 12 );
+		revision = SysLib.bytes2int( superblock, 16 );
+		highWater = SysLib.bytes2int( superblock, 20 );
+		journalStart = SysLib.bytes2int( superblock, 24 );
+		journalBlocks = SysLib.bytes2int( superblock, 28 );
+		if ( blockSize == 0 ) {
+			blockSize = Disk.blockSize; // formatted before block sizes
+		}
+		if ( revision == 0 ) {
+			revision = Volume.shortPointers; // formatted before revisions
+		}
+		if ( revision == Volume.shortPointers ) {
+			highWater = dataBlocks(); // every free block is on the list
 		}
 	}
 
+    // blocks from here on hold the journal, not files
+	private int dataBlocks() {
+		return ( journalBlocks > 0 ) ? journalStart : totalBlocks;
+	}
+
+    // start the journal described by this superblock, if it has one
+	private Journal openJournal() {
+		if ( Volume.journal != null ) {
+			Volume.journal.close( );
+			Volume.journal = null;
+		}
+		if ( journalBlocks == 0 ) {
+			return null;
+		}
+		Journal journal = new Journal( journalStart, journalBlocks );
+		Volume.journal = journal;
+		journal.start( );
+		return journal;
+	}
+
     //Format no parameter calls format with default blocks
     public void format() {
         format(defaultInodeBlocks);
     }
 
-    //Format creates a clean superblock
+    //Format with the default block size
 	public void format( int inodeBlockSize ) {
+        format(inodeBlockSize, Disk.blockSize);
+	}
+
+    //Format with the narrowest revision that can address the disk
+	public void format( int inodeBlockSize, int blockSize ) {
+        format(inodeBlockSize, blockSize, 0);
+	}
+
+    //Format creates a clean superblock with blocks of the given size
+    //revision 0 picks 32-bit pointers only when 16 bits cannot address
+    //every block; 16-bit pointers too narrow for the disk are widened as
+    //well, and Volume.extents addresses any disk
+	public void format( int inodeBlockSize, int blockSize, int revision ) {
+        //the old journal goes away with everything else, and nothing is
+        //journaled until the new one is set up
+        if(Volume.journal != null) {
+            Volume.journal.close();
+            Volume.journal = null;
+        }
+        this.blockSize = blockSize;
+        Volume.blockSize = blockSize;
+        //a file system block spans blockSize/512 disk blocks
+        totalBlocks = diskSize / Volume.sectors();
+        if(revision == 0 || (revision == Volume.shortPointers
+                             && totalBlocks > Short.MAX_VALUE)) {
+            revision = (totalBlocks > Short.MAX_VALUE) ?
+                Volume.intPointers : Volume.shortPointers;
+        }
+        this.revision = revision;
+        Volume.revision = revision;
         totalInodes = inodeBlockSize;
+        //inodes are 32 bytes, or 64 with 32-bit pointers or extents
+        //each block on disk is blockSize bytes
+        //block 0 is superblock
+        //free list should start at (32*inodes/blockSize)+1, rounded up
+        //example 64 blocks should start at block 5 as explained in FAQ
+        //example#2 48 blocks should start at block 4 as explained in FAQ
+        int inodeSize = Inode.inodeSize();
+        int inodeBlocks = (totalInodes*inodeSize+blockSize-1)/blockSize;
+        freeList = inodeBlocks+1;
+        //the journal takes the last 1/16 of the volume, none if tiny
+        journalBlocks = Math.min(maxJournalBlocks, totalBlocks/16);
+        if(journalBlocks < 8) {
+            journalBlocks = 0;
+        }
+        journalStart = totalBlocks - journalBlocks;
+        highWater = dataBlocks();
+
         //INode reference
         Inode blankInode;
-        //Create inodes and write them to disk
+        //Create inodes and write the whole inode table to disk at once
+        byte[] inodeTable = new byte[inodeBlocks*blockSize];
         for(int i = 0; i < totalInodes; i++) {
             blankInode = new Inode();
             blankInode.flag = 0;
-            blankInode.toDisk((short)i);
+            blankInode.toBytes(inodeTable, i*inodeSize);
+        }
+        if(inodeTable.length > 0) {
+            Volume.write(1,inodeTable);
         }
 
-        //inodes are 32 bytes
-        //each block on disk is 512 bytes
-        //block 0 is superblock
-        //free list should start at (32*inodes/512)+1
-        //example 64 blocks should start at block 5 as explained in FAQ
-        //example#2 48 blocks should start at block 4 as explained in FAQ
-        freeList = (totalInodes*32/512)+1;
-
-        //byte array to write to each block
-        byte[] zeroArray;
-        //each block except the last one stores a value to the next block
-        for(int i = freeList; i < totalBlocks-1; i++) {
-            //In order to keep a queue, we must implement pointer in data
-            zeroArray = new byte[Disk.blockSize];
-            SysLib.int2bytes(i+1,zeroArray,0);
-            SysLib.rawwrite(i,zeroArray);
-        }
-        //last block in queue stores -1
-        zeroArray = new byte[Disk.blockSize];
-        SysLib.int2bytes(-1,zeroArray,0);
-        SysLib.rawwrite(totalBlocks-1,zeroArray);
+        //with 32-bit pointers or extents the volume may be huge, so nothing
+        //past the inodes is written: the free list starts out empty and
+        //blocks are handed out from the high-water mark instead
+        if(revision != Volume.shortPointers) {
+            highWater = freeList;
+            freeList = -1;
+        } else {
+            //each block except the last one stores a value to the next
+            //block, the chain is written a batch of blocks per command
+            for(int i = freeList; i < highWater; i += formatBatch) {
+                int count = Math.min(formatBatch, highWater - i);
+                //In order to keep a queue, we must implement pointer in data
+                byte[] zeroArray = new byte[count*blockSize];
+                for(int j = 0; j < count; j++) {
+                    //last block in queue stores -1
+                    int next = (i+j+1 < highWater) ? i+j+1 : -1;
+                    SysLib.int2bytes(next,zeroArray,j*blockSize);
+                }
+                Volume.write(i,zeroArray);
+            }
+        }
 
+        //the superblock goes straight home, then the journal starts empty
         sync();
+        Journal journal = openJournal();
+        if(journal != null) {
+            journal.format();
+        }
+        //a write-back cache lets go of the new file system at once too
+        Volume.flush();
 	}
 
     //Sync the Superblock
 	public void sync() {
+        //Write back to the 0 block on disk, committing it with every
+        //metadata update still in the journal's running transaction
+        Volume.writeMeta(0,toBytes());
+        if(Volume.journal != null) {
+            Volume.journal.commit();
+        }
+        SysLib.cout("Superblock Synchronized\n");
+	}
+
+    //the superblock as it is stored in block 0
+	private byte[] toBytes() {
 		// Write back totalBlocks, inodeBlocks, and freeList to disk.
         //Disk stores bytes so we need a byte array
-        byte[] toDisk = new byte[Disk.blockSize];
+        byte[] toDisk = new byte[blockSize];
         //Write data to the byte array
         SysLib.int2bytes(totalBlocks,toDisk,0);
         SysLib.int2bytes(totalInodes,toDisk,4);
         SysLib.int2bytes(freeList,toDisk,8);
-        //Write back to the 0 block on disk
-        SysLib.rawwrite(0,toDisk);
-        SysLib.cout("Superblock Synchronized\n");
+        SysLib.int2bytes(blockSize,toDisk,12);
+        SysLib.int2bytes(revision,toDisk,16);
+        SysLib.int2bytes(highWater,toDisk,20);
+        SysLib.int2bytes(journalStart,toDisk,24);
+        SysLib.int2bytes(journalBlocks,toDisk,28);
+        return toDisk;
+	}
+
+    //freeList or highWater changed: journal the superblock in the same
+    //transaction as the free-list links and inodes of the change, so a
+    //replay never pairs them with an older free list; without a journal
+    //it waits for sync
+	private void logChange() {
+        if(Volume.journal != null) {
+            Volume.writeMeta(0,toBytes());
+        }
 	}
 
     //get next available block from top of the list
-	public int getFreeBlock() {
+	public synchronized int getFreeBlock() {
 		// Dequeue the top block from the free list.
         //get the free list block
         int toReturn = freeList;
-        if(toReturn != -1) {
+        if(toReturn == -1 && highWater < dataBlocks()) {
+            //the list is empty, take the next never-used block
+            toReturn = highWater++;
+        } else if(toReturn != -1) {
             //make array to get the next block from the free block
-            byte[] temp = new byte[Disk.blockSize];
+            byte[] temp = new byte[blockSize];
             //read from freblock
-            SysLib.rawread(freeList,temp);
+            Volume.readMeta(freeList,temp);
             //set the freeList from the current free block
             freeList = SysLib.bytes2int(temp,0);
-            //fill the array to make it blank and write to the block to be returned
-            Arrays.fill(temp, (byte) 0);
-            SysLib.rawwrite(toReturn,temp);
+        }
+        //as with getFreeRun, the block is not cleared: a file's bytes are
+        //written before its length covers them, and an index or extent
+        //block is built in memory; it holds file data from now on,
+        //written around the journal
+        if(toReturn != -1) {
+            logChange();
+            Volume.revoke(toReturn, 1);
         }
 		return toReturn;
 	}
 
+    //get up to want blocks that follow each other on disk, as { the first
+    //block, the number of blocks }, or null if no block is free: the head
+    //of the free list and the blocks after it that are next on disk too,
+    //unless the never-used blocks from the high-water mark make a longer run
+	public synchronized int[] getFreeRun( int want ) {
+        want = Math.min(want, maxRun);
+        //blocks freed together were queued together, often in order
+        int listed = 0;
+        int next = freeList;
+        byte[] temp = new byte[blockSize];
+        while(listed < want && next != -1 && next == freeList + listed) {
+            Volume.readMeta(next,temp);
+            next = SysLib.bytes2int(temp,0);
+            listed++;
+        }
+        int fresh = Math.min(want, dataBlocks() - highWater);
+
+        int first;
+        int count;
+        if(listed == 0 && fresh == 0) {
+            return null;
+        } else if(listed >= fresh) {
+            first = freeList;
+            count = listed;
+            freeList = next;
+        } else {
+            first = highWater;
+            count = fresh;
+            highWater += count;
+        }
+        //the run is not cleared: a file's bytes are all written before its
+        //length covers them, so old data in it is never read back; it
+        //holds file data from now on, written around the journal
+        logChange();
+        Volume.revoke(first, count);
+        return new int[] { first, count };
+	}
+
     //Gets block that is freed and placed at the end
+	public synchronized boolean returnBlock( int blockNumber ) {
+        return returnRun(blockNumber, 1);
+	}
+
+    //Gets count blocks from first on that are freed and placed at the end,
+    //chained in order so that getFreeRun can hand them out as a run again
     //Since we can't add data structures, iternate through all free blocks until the last one is found with -1
-	public boolean returnBlock( int blockNumber ) {
-		// Enqueue a given block to the end of the free list.
-        // set the parameter block to point to -1 and write to the parameter block
+	public synchronized boolean returnRun( int first, int count ) {
+		// Enqueue the given blocks to the end of the free list.
+        // each block points to the next one, the last one to -1
         byte[] temp;
-        temp = new byte[Disk.blockSize];
-        SysLib.int2bytes(-1,temp,0);
-        SysLib.rawwrite(blockNumber,temp);
+        for(int i = 0; i < count; i++) {
+            temp = new byte[blockSize];
+            SysLib.int2bytes((i + 1 < count) ? first + i + 1 : -1,temp,0);
+            Volume.writeMeta(first + i,temp);
+        }
+        int blockNumber = first;
         //If there were no free blocks, there is now a free block
         if(freeList == -1) {
             freeList = blockNumber;
+            logChange();
             return true;
         }
         //traverse the freeblocks until we get to the end which is the block with -1
         int current = freeList; //get the current index
         int next;
         while(current != -1) {
-            temp = new byte[Disk.blockSize];
-            SysLib.rawread(current,temp);
+            temp = new byte[blockSize];
+            Volume.readMeta(current,temp);
             next = SysLib.bytes2int(temp,0);
             //If block has -1, it was the previous last block, this block now points to the returned block
             if(next == -1) {
                 //overwrite the number the block is pointing to with the returned block number
                 SysLib.int2bytes(blockNumber,temp,0);
                 //write into the current block
-                SysLib.rawwrite(current,temp);
+                Volume.writeMeta(current,temp);
                 break;
             } else {
                 current = next;
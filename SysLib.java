@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class SysLib {
     public static int exec( String args[] ) {
@@ -16,6 +17,11 @@ public class SysLib {
 				 Kernel.BOOT, 0, null );
     }
 
+    public static int boot( String args[] ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.BOOT, 0, args );
+    }
+
     public static int exit( ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.EXIT, 0, null );
@@ -31,6 +37,11 @@ public class SysLib {
 				 0, 0, null );
     }
 
+    public static int disk( DiskRequest request ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
+				 0, 0, request );
+    }
+
     public static int cin( StringBuffer s ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.READ, 0, s );
@@ -56,11 +67,64 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // reads b.length / 512 consecutive blocks starting at blkNumber
+    public static int rawreadv( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, blkNumber, b );
+    }
+
+    // writes b.length / 512 consecutive blocks starting at blkNumber
+    public static int rawwritev( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, blkNumber, b );
+    }
+
+    // starts reading b.length / 512 blocks from blkNumber and returns at
+    // once.  The future completes with Kernel.OK or Kernel.ERROR from the
+    // disk interrupt; actions chained with thenXxx( ) run on the disk
+    // thread, so anything longer should use thenXxxAsync( ).
+    public static CompletableFuture<Integer> rawreadAsync( int blkNumber,
+							   byte[] b ) {
+	CompletableFuture<Integer> done = new CompletableFuture<Integer>( );
+	Object[] args = { b, done };
+        Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+			  Kernel.RAWREADA, blkNumber, args );
+	return done;
+    }
+
+    // starts writing b.length / 512 blocks from blkNumber, as rawreadAsync
+    public static CompletableFuture<Integer> rawwriteAsync( int blkNumber,
+							    byte[] b ) {
+	CompletableFuture<Integer> done = new CompletableFuture<Integer>( );
+	Object[] args = { b, done };
+        Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+			  Kernel.RAWWRITEA, blkNumber, args );
+	return done;
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
     }
 
+    // durable = false returns as soon as the disk has taken its snapshot
+    // and leaves the write to the host file to the background flusher
+    public static int sync( boolean durable ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.SYNC,
+				 durable ? 0 : Kernel.SYNC_NOWAIT, null );
+    }
+
+    // appends disk statistics to b: requests, seeks, queueing, hot blocks
+    public static int diskstats( StringBuffer b ) {
+	return diskstats( b, false );
+    }
+
+    // with reset, every counter starts over after the report
+    public static int diskstats( StringBuffer b, boolean reset ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.DISKSTATS,
+				 reset ? Kernel.STATS_RESET : 0, b );
+    }
+
     public static int cread( int blkNumber, byte[] b ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CREAD, blkNumber, b );
@@ -81,6 +145,14 @@ public class SysLib {
 				 Kernel.CSYNC, 0, null );
     }
 
+    // tells the cache how count blocks from blkNumber will be used, one
+    // of Kernel.ADVISE_WILLNEED and Kernel.ADVISE_DONTNEED
+    public static int cadvise( int blkNumber, int count, int advice ) {
+	int[] args = { count, advice };
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CADVISE, blkNumber, args );
+    }
+
     public static String[] stringToArgs( String s ) {
 	StringTokenizer token = new StringTokenizer( s," " );
 	String[] progArgs = new String[ token.countTokens( ) ];
@@ -122,6 +194,25 @@ public class SysLib {
 				 Kernel.FORMAT, fileSize, null );
     }
 
+    // formats with blockSize-byte blocks, a power of two from 512 to 4096
+    public static int format( int fileSize, int blockSize ) {
+	int[] args = new int[1];
+	args[0] = blockSize;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FORMAT, fileSize, args );
+    }
+
+    // formats in the given revision, Volume.intPointers for 32-bit block
+    // pointers or Volume.extents for inodes mapping runs of blocks; 0 picks
+    // 32-bit pointers only when the disk has over 32767 blocks
+    public static int format( int fileSize, int blockSize, int revision ) {
+	int[] args = new int[2];
+	args[0] = blockSize;
+	args[1] = revision;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FORMAT, fileSize, args );
+    }
+
     public static int open( String filename, String mode ) {
 	String[] args = new String[2];
 	args[0] = filename;
@@ -158,6 +249,18 @@ public class SysLib {
 				 Kernel.SIZE, fd, null );
     }
 
+    // tells how len bytes of fd from offset on, or all of them from offset
+    // on if len is 0, will be read: one of the Kernel.ADVISE_ hints
+    public static int fadvise( int fd, int offset, int len, int advice ) {
+	int[] args = { offset, len, advice };
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FADVISE, fd, args );
+    }
+
+    public static int fadvise( int fd, int advice ) {
+	return fadvise( fd, 0, 0, advice );
+    }
+
     public static int delete( String filename ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.DELETE, 0, filename );
@@ -0,0 +1,220 @@
+// Test10: the advice of SysLib.cadvise( ) and SysLib.fadvise( ), checked
+// through the cache counters SysLib.diskstats( ) reports.  Boot with
+// blocks=40000 fscache=on: cadvise( ) is tried on blocks 20000 on, beyond
+// the file system, and fadvise( ) only acts on files behind the cache.
+class Test10 extends Thread {
+  final static int first = 20000;
+  final static int count = 256;
+  final byte[] data = new byte[30000];
+  final int dataBlocks = ( data.length + Disk.blockSize - 1 ) / Disk.blockSize;
+
+  public void run( ) {
+    SysLib.format( 48 );
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte )( i * 31 + i / 977 );
+
+    if ( test1( ) ) // cadvise WILLNEED reads the blocks ahead
+      SysLib.cout("Correct behavior of cadvise WILLNEED..........2\n");
+    if ( test2( ) ) // cadvise DONTNEED drops clean blocks
+      SysLib.cout("Correct behavior of cadvise DONTNEED..........2\n");
+    if ( test3( ) ) // fadvise WILLNEED reads a file ahead
+      SysLib.cout("Correct behavior of fadvise WILLNEED..........2\n");
+    if ( test4( ) ) // fadvise DONTNEED drops a file's blocks
+      SysLib.cout("Correct behavior of fadvise DONTNEED..........2\n");
+    if ( test5( ) ) // fadvise SEQUENTIAL reads ahead of read( )
+      SysLib.cout("Correct behavior of fadvise SEQUENTIAL........2\n");
+    if ( test6( ) ) // bad advice, offsets and fds are refused
+      SysLib.cout("Correct behavior of advice errors.............2\n");
+    SysLib.exit( );
+  }
+
+  // the counters since the last call, the next call counting from zero
+  private String stats( ) {
+    StringBuffer b = new StringBuffer( );
+    SysLib.diskstats( b, true );
+    return b.toString( );
+  }
+
+  // the value of name=value in stats, or -1
+  private long counter( String stats, String name ) {
+    int at = stats.indexOf( " " + name + "=" );
+    if ( at < 0 )
+      return -1;
+    at += name.length( ) + 2;
+    int end = at;
+    while ( end < stats.length( ) && Character.isDigit( stats.charAt( end ) ) )
+      end++;
+    return Long.parseLong( stats.substring( at, end ) );
+  }
+
+  private boolean expect( String stats, String name, long value ) {
+    if ( counter( stats, name ) != value ) {
+      SysLib.cout( name + " = " + counter( stats, name ) + ", not " + value +
+                   " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean readBlocks( ) {
+    byte[] b = new byte[Disk.blockSize];
+    for ( int i = 0; i < count; i++ ) {
+      SysLib.cread( first + i, b );
+      if ( b[7] != ( byte )i ) {
+        SysLib.cout( "block " + ( first + i ) + " b[7] = " + b[7] +
+                     " (wrong)\n" );
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean readFile( int fd, int piece ) {
+    byte[] b = new byte[piece];
+    int pos = 0;
+    int n;
+    while ( ( n = SysLib.read( fd, b ) ) > 0 ) {
+      for ( int i = 0; i < n; i++ )
+        if ( b[i] != data[pos + i] ) {
+          SysLib.cout( "byte " + ( pos + i ) + " = " + b[i] + " (wrong)\n" );
+          return false;
+        }
+      pos += n;
+    }
+    if ( pos != data.length ) {
+      SysLib.cout( "read " + pos + " bytes (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: cadvise WILLNEED " + count + " blocks.." );
+    byte[] b = new byte[Disk.blockSize];
+    for ( int i = 0; i < count; i++ ) {
+      java.util.Arrays.fill( b, ( byte )i );
+      SysLib.rawwrite( first + i, b );
+    }
+    SysLib.flush( );
+    stats( );
+    if ( SysLib.cadvise( first, count, Kernel.ADVISE_WILLNEED ) != 0 ) {
+      SysLib.cout( "cadvise failed (wrong)\n" );
+      return false;
+    }
+    SysLib.sleep( 500 );
+    if ( !readBlocks( ) )
+      return false;
+    String s = stats( );
+    if ( !expect( s, "prefetched", count ) || !expect( s, "misses", 0 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: cadvise DONTNEED half of them" );
+    if ( SysLib.cadvise( first, count / 2, Kernel.ADVISE_DONTNEED ) != 0 ) {
+      SysLib.cout( "cadvise failed (wrong)\n" );
+      return false;
+    }
+    if ( !readBlocks( ) )
+      return false;
+    String s = stats( );
+    if ( !expect( s, "dropped", count / 2 ) ||
+         !expect( s, "misses", count / 2 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: fadvise WILLNEED a file......" );
+    int fd = SysLib.open( "advice", "w" );
+    SysLib.write( fd, data );
+    SysLib.close( fd );
+    SysLib.sync( );
+    SysLib.flush( );
+    fd = SysLib.open( "advice", "r" );
+    stats( );
+    if ( SysLib.fadvise( fd, 0, 0, Kernel.ADVISE_WILLNEED ) != 0 ) {
+      SysLib.cout( "fadvise failed (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    SysLib.sleep( 500 );
+    boolean ok = readFile( fd, data.length );
+    SysLib.close( fd );
+    String s = stats( );
+    if ( !ok || !expect( s, "prefetched", dataBlocks ) ||
+         !expect( s, "misses", 0 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: fadvise DONTNEED the file...." );
+    int fd = SysLib.open( "advice", "r" );
+    int status = SysLib.fadvise( fd, Kernel.ADVISE_DONTNEED );
+    SysLib.close( fd );
+    if ( status != 0 ) {
+      SysLib.cout( "fadvise failed (wrong)\n" );
+      return false;
+    }
+    if ( !expect( stats( ), "dropped", dataBlocks ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fadvise SEQUENTIAL and read.." );
+    SysLib.flush( );
+    int fd = SysLib.open( "advice", "r" );
+    stats( );
+    if ( SysLib.fadvise( fd, Kernel.ADVISE_SEQUENTIAL ) != 0 ) {
+      SysLib.cout( "fadvise failed (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    boolean ok = readFile( fd, 1000 );
+    SysLib.close( fd );
+    String s = stats( );
+    if ( !ok )
+      return false;
+    if ( counter( s, "prefetched" ) <= 0 ) {
+      SysLib.cout( "nothing read ahead (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test6( ) {
+    //.............................................."
+    SysLib.cout( "6: bad advice, offset and fd...." );
+    int fd = SysLib.open( "advice", "r" );
+    int[] status = {
+      SysLib.cadvise( first, count, Kernel.ADVISE_DONTNEED + 1 ),
+      SysLib.cadvise( -1, count, Kernel.ADVISE_WILLNEED ),
+      SysLib.fadvise( fd, Kernel.ADVISE_NORMAL - 1 ),
+      SysLib.fadvise( fd, -1, 0, Kernel.ADVISE_WILLNEED ),
+      SysLib.fadvise( 31, Kernel.ADVISE_SEQUENTIAL ), // not open
+      SysLib.fadvise( -1, Kernel.ADVISE_SEQUENTIAL )
+    };
+    SysLib.close( fd );
+    for ( int i = 0; i < status.length; i++ )
+      if ( status[i] != -1 ) {
+        SysLib.cout( "call " + ( i + 1 ) + " returned " + status[i] +
+                     " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,139 @@
+// Test11 crash [revision] / Test11 check: the metadata journal across a
+// crash.  "crash" formats with 32-bit pointers (or the given revision),
+// commits file metadata through the journal's group commit and halts the
+// JVM without a SYNC; "check", run after booting again, tests what the
+// journal replayed.  Boot both with disk=mmap, whose writes reach DISK
+// without a sync, e.g. "l Test11 crash", then "l Test11 check".
+class Test11 extends Thread {
+  final static int commitWait = 2500; // ms: two group commits and then some
+  final boolean crash;
+  final int revision;
+
+  public Test11( String args[] ) {
+    crash = args[0].equals( "crash" );
+    revision = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 2;
+  }
+
+  public Test11( ) {
+    crash = false;
+    revision = 2;
+  }
+
+  public void run( ) {
+    if ( crash ) {
+      if ( test1( ) ) // files changed after a sync, then a crash
+        SysLib.cout( "Test11: halting without sync; reboot and run " +
+                     "\"Test11 check\"\n" );
+      Runtime.getRuntime( ).halt( 1 );
+    }
+    if ( test2( ) ) // the replay kept every committed file intact
+      SysLib.cout("Correct behavior of replaying the journal.....2\n");
+    if ( test3( ) ) // the revoked block keeps its new data
+      SysLib.cout("Correct behavior of a revoked, reused block...2\n");
+    if ( test4( ) ) // new blocks come from free space only
+      SysLib.cout("Correct behavior of allocating after replay...2\n");
+    SysLib.exit( );
+  }
+
+  private byte[] filled( int size, char c ) {
+    byte[] b = new byte[size];
+    java.util.Arrays.fill( b, ( byte )c );
+    return b;
+  }
+
+  private boolean write( String name, String mode, byte[] data ) {
+    int fd = SysLib.open( name, mode );
+    int size = SysLib.write( fd, data );
+    SysLib.close( fd );
+    if ( fd == -1 || size != data.length ) {
+      SysLib.cout( "writing " + name + " failed (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // whether name holds size bytes of c
+  private boolean holds( String name, int size, char c ) {
+    int fd = SysLib.open( name, "r" );
+    if ( fd == -1 ) {
+      SysLib.cout( name + " is missing (wrong)\n" );
+      return false;
+    }
+    int length = SysLib.fsize( fd );
+    byte[] b = new byte[Math.max( length, 0 )];
+    SysLib.read( fd, b );
+    SysLib.close( fd );
+    if ( length != size ) {
+      SysLib.cout( name + " size = " + length + ", not " + size +
+                   " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < size; i++ )
+      if ( b[i] != ( byte )c ) {
+        SysLib.cout( name + "[" + i + "] = " + b[i] + ", not '" + c +
+                     "' (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: change files after a sync..." );
+    if ( SysLib.format( 48, Disk.blockSize, revision ) != 0 ) {
+      SysLib.cout( "format failed (wrong)\n" );
+      return false;
+    }
+    // the directory only reaches the disk at a sync, so every name is
+    // made before it
+    if ( !write( "A", "w", filled( 512, 'a' ) ) ||
+         !write( "C", "w", filled( 512, 'c' ) ) ||
+         !write( "D", "w", new byte[0] ) )
+      return false;
+    SysLib.sync( );
+
+    // A grows and C gives its block back; the free-list link then written
+    // into that block is committed to the journal
+    if ( !write( "A", "a", filled( 4096, 'a' ) ) ||
+         !write( "C", "w", new byte[0] ) )
+      return false;
+    SysLib.sleep( commitWait );
+
+    // D takes the freed block for its data, so the link must be revoked
+    // rather than replayed over it
+    if ( !write( "D", "w", filled( 512, 'd' ) ) )
+      return false;
+    SysLib.sleep( commitWait );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: A and C after the replay...." );
+    if ( !holds( "A", 4608, 'a' ) || !holds( "C", 0, 'c' ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: D in C's old block.........." );
+    if ( !holds( "D", 512, 'd' ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: write B and read all back..." );
+    if ( !write( "B", "w", filled( 4096, 'b' ) ) ||
+         !holds( "B", 4096, 'b' ) || !holds( "A", 4608, 'a' ) ||
+         !holds( "D", 512, 'd' ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,212 @@
+// Test12 [blocks]: every on-disk format.  For each block size from 512 to
+// 4096 bytes and each revision (16-bit pointers, 32-bit pointers and
+// extents) it formats the disk, checks the superblock in block 0 against
+// the requested geometry and writes and reads back the largest file the
+// format and the disk allow, past the direct pointers into the index
+// block.  Revision 3 also grows two files a block at a time in turn, so
+// that each takes more runs than the 6 extents its inode holds and goes
+// on in its extent block.  blocks is the disk size booted with, 1000 by
+// default, as in Test5.
+class Test12 extends Thread {
+  final static int files = 48;
+  final static int directSize = 11;   // direct pointers of revisions 1, 2
+  final static int maxJournalBlocks = 256;
+  final int diskBlocks;
+
+  public Test12( String args[] ) {
+    diskBlocks = Integer.parseInt( args[0] );
+  }
+
+  public Test12( ) {
+    diskBlocks = 1000;
+  }
+
+  public void run( ) {
+    boolean formats = true;
+    boolean bigFiles = true;
+    for ( int blockSize = Volume.minBlockSize;
+          blockSize <= Volume.maxBlockSize; blockSize *= 2 )
+      for ( int revision = Volume.shortPointers;
+            revision <= Volume.extents; revision++ ) {
+        if ( !test1( blockSize, revision ) ) { // format and superblock
+          formats = false;
+          continue;
+        }
+        bigFiles &= test2( blockSize, revision ); // the largest file
+      }
+    if ( formats )
+      SysLib.cout("Correct behavior of every format..............2\n");
+    if ( bigFiles )
+      SysLib.cout("Correct behavior of large files...............2\n");
+    if ( test3( ) ) // files past the inline extents
+      SysLib.cout("Correct behavior of the extent block..........2\n");
+
+    SysLib.format( files );
+    SysLib.exit( );
+  }
+
+  private static byte value( int file, int i ) {
+    return ( byte )( i * 13 + i / 511 + file * 7 );
+  }
+
+  // the file system blocks the format keeps for itself: the superblock,
+  // the inodes and the journal
+  private int reserved( int blockSize, int revision ) {
+    int inodeSize = ( revision == Volume.shortPointers ) ? 32 : 64;
+    int totalBlocks = diskBlocks / ( blockSize / Disk.blockSize );
+    return 1 + ( files * inodeSize + blockSize - 1 ) / blockSize +
+      journalBlocks( totalBlocks );
+  }
+
+  private int journalBlocks( int totalBlocks ) {
+    int blocks = Math.min( maxJournalBlocks, totalBlocks / 16 );
+    return ( blocks < 8 ) ? 0 : blocks;
+  }
+
+  private boolean expect( String name, int value, int wanted ) {
+    if ( value != wanted ) {
+      SysLib.cout( name + " = " + value + ", not " + wanted + " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean test1( int blockSize, int revision ) {
+    //.............................................."
+    SysLib.cout( "1: format " + blockSize + "-byte blocks, revision " +
+                 revision + "..." );
+    if ( SysLib.format( files, blockSize, revision ) != 0 ) {
+      SysLib.cout( "format failed (wrong)\n" );
+      return false;
+    }
+    byte[] superblock = new byte[Disk.blockSize];
+    SysLib.rawread( 0, superblock );
+    int totalBlocks = diskBlocks / ( blockSize / Disk.blockSize );
+    int journal = journalBlocks( totalBlocks );
+    int firstFree = reserved( blockSize, revision ) - journal;
+    boolean ok =
+      expect( "totalBlocks", SysLib.bytes2int( superblock, 0 ),
+              totalBlocks ) &&
+      expect( "totalInodes", SysLib.bytes2int( superblock, 4 ), files ) &&
+      expect( "blockSize", SysLib.bytes2int( superblock, 12 ),
+              blockSize ) &&
+      expect( "revision", SysLib.bytes2int( superblock, 16 ), revision ) &&
+      expect( "journalStart", SysLib.bytes2int( superblock, 24 ),
+              totalBlocks - journal ) &&
+      expect( "journalBlocks", SysLib.bytes2int( superblock, 28 ),
+              journal );
+    // 16-bit pointers chain every free block at format; the wider ones
+    // hand out blocks from a high-water mark
+    if ( ok && revision == Volume.shortPointers )
+      ok = expect( "freeList", SysLib.bytes2int( superblock, 8 ),
+                   firstFree ) &&
+        expect( "highWater", SysLib.bytes2int( superblock, 20 ),
+                totalBlocks - journal );
+    else if ( ok )
+      ok = expect( "freeList", SysLib.bytes2int( superblock, 8 ), -1 ) &&
+        expect( "highWater", SysLib.bytes2int( superblock, 20 ),
+                firstFree );
+    if ( ok )
+      SysLib.cout( "successfully completed\n" );
+    return ok;
+  }
+
+  private boolean test2( int blockSize, int revision ) {
+    //.............................................."
+    // the free blocks, less one for an index or extent block
+    int free = diskBlocks / ( blockSize / Disk.blockSize ) -
+      reserved( blockSize, revision ) - 1;
+    int blocks = free;
+    boolean full = false;
+    if ( revision != Volume.extents ) {
+      int pointers = blockSize / ( ( revision == Volume.shortPointers )
+                                   ? 2 : 4 );
+      full = directSize + pointers <= free;
+      blocks = Math.min( free, directSize + pointers );
+    }
+    int size = full ? blocks * blockSize : blocks * blockSize - 100;
+    SysLib.cout( "2: " + ( full ? "largest " : "" ) + "file of " + size +
+                 " bytes..." );
+    byte[] data = new byte[size];
+    for ( int i = 0; i < size; i++ )
+      data[i] = value( 0, i );
+    int fd = SysLib.open( "big", "w" );
+    int written = SysLib.write( fd, data );
+    // a file as large as the pointers reach cannot grow any more
+    int past = full ? SysLib.write( fd, new byte[1] ) : -1;
+    SysLib.close( fd );
+    if ( written != size || past != -1 ) {
+      SysLib.cout( "wrote " + written + " then " + past + " bytes (wrong)\n" );
+      return false;
+    }
+
+    fd = SysLib.open( "big", "r" );
+    byte[] back = new byte[size];
+    int read = SysLib.read( fd, back );
+    int length = SysLib.fsize( fd );
+    SysLib.close( fd );
+    if ( read != size || length != size ) {
+      SysLib.cout( "read " + read + " of " + length + " bytes (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < size; i++ )
+      if ( back[i] != data[i] ) {
+        SysLib.cout( "byte " + i + " = " + back[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: two files growing in turn..." );
+    if ( SysLib.format( files, Disk.blockSize, Volume.extents ) != 0 ) {
+      SysLib.cout( "format failed (wrong)\n" );
+      return false;
+    }
+    // each append takes a run of its own, the other file's in between,
+    // so 40 blocks take far more than 6 extents even though a growing
+    // file asks for a quarter more than it needs
+    int rounds = 40;
+    byte[] block = new byte[Disk.blockSize];
+    for ( int r = 0; r < rounds; r++ )
+      for ( int file = 1; file <= 2; file++ ) {
+        for ( int i = 0; i < block.length; i++ )
+          block[i] = value( file, r * block.length + i );
+        int fd = SysLib.open( "grow" + file, "a" );
+        int written = SysLib.write( fd, block );
+        SysLib.close( fd );
+        if ( written != block.length ) {
+          SysLib.cout( "grow" + file + " append " + r + " wrote " +
+                       written + " bytes (wrong)\n" );
+          return false;
+        }
+        // read it all back after every append, across each new extent
+        if ( !holds( file, ( r + 1 ) * block.length ) )
+          return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean holds( int file, int size ) {
+    int fd = SysLib.open( "grow" + file, "r" );
+    byte[] back = new byte[size];
+    int read = SysLib.read( fd, back );
+    int length = SysLib.fsize( fd );
+    SysLib.close( fd );
+    if ( read != size || length != size ) {
+      SysLib.cout( "grow" + file + " read " + read + " of " + length +
+                   " bytes, not " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < size; i++ )
+      if ( back[i] != value( file, i ) ) {
+        SysLib.cout( "grow" + file + " byte " + i + " = " + back[i] +
+                     " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+}
@@ -0,0 +1,186 @@
+// Test13 crash [revision] / Test13 check: the inode table of FileTable.
+// "crash" formats with 32-bit pointers (or the given revision) and checks
+// that descriptors on the same file share one inode, then leaves one file
+// to be saved by its last close and one by a SYNC while it is still open,
+// and halts the JVM; "check", run after booting again, tests that both
+// reached the disk.  Boot both with disk=mmap, whose writes reach DISK
+// without a sync, e.g. "l Test13 crash", then "l Test13 check".
+class Test13 extends Thread {
+  final static int commitWait = 2500; // ms: two group commits and then some
+  final static int SEEK_SET = 0;
+  final static int SEEK_END = 2;
+  final boolean crash;
+  final int revision;
+
+  public Test13( String args[] ) {
+    crash = args[0].equals( "crash" );
+    revision = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 2;
+  }
+
+  public Test13( ) {
+    crash = false;
+    revision = 2;
+  }
+
+  public void run( ) {
+    if ( crash ) {
+      if ( !format( ) )
+        Runtime.getRuntime( ).halt( 1 );
+      if ( test1( ) ) // two writers see one length and one set of blocks
+        SysLib.cout("Correct behavior of fds sharing an inode......2\n");
+      if ( test2( ) && test3( ) ) // the last close, then a SYNC
+        SysLib.cout( "Test13: halting without closing \"synced\"; reboot " +
+                     "and run \"Test13 check\"\n" );
+      Runtime.getRuntime( ).halt( 1 );
+    }
+    if ( test4( ) ) // what the last close saved
+      SysLib.cout("Correct behavior of saving on the last close..2\n");
+    if ( test5( ) ) // what the SYNC saved of a file still open
+      SysLib.cout("Correct behavior of saving open files on sync.2\n");
+    SysLib.exit( );
+  }
+
+  private byte[] filled( int size, char c ) {
+    byte[] b = new byte[size];
+    java.util.Arrays.fill( b, ( byte )c );
+    return b;
+  }
+
+  private boolean write( int fd, byte[] data, String name ) {
+    if ( SysLib.write( fd, data ) != data.length ) {
+      SysLib.cout( "writing " + name + " failed (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean expect( String name, int fd, int size ) {
+    int length = SysLib.fsize( fd );
+    if ( length != size ) {
+      SysLib.cout( name + " size = " + length + ", not " + size +
+                   " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // whether b[from..to) holds c
+  private boolean holds( String name, byte[] b, int from, int to, char c ) {
+    for ( int i = from; i < to; i++ )
+      if ( b[i] != ( byte )c ) {
+        SysLib.cout( name + "[" + i + "] = " + b[i] + ", not '" + c +
+                     "' (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  // whether name holds size bytes of c
+  private boolean holds( String name, int size, char c ) {
+    int fd = SysLib.open( name, "r" );
+    if ( fd == -1 ) {
+      SysLib.cout( name + " is missing (wrong)\n" );
+      return false;
+    }
+    byte[] b = new byte[Math.max( SysLib.fsize( fd ), 0 )];
+    SysLib.read( fd, b );
+    boolean ok = expect( name, fd, size ) && holds( name, b, 0, size, c );
+    SysLib.close( fd );
+    return ok;
+  }
+
+  private boolean format( ) {
+    if ( SysLib.format( 48, Disk.blockSize, revision ) != 0 ) {
+      SysLib.cout( "format failed (wrong)\n" );
+      return false;
+    }
+    // the directory only reaches the disk at a sync, so every name is
+    // made before it
+    int closed = SysLib.open( "closed", "w" );
+    int synced = SysLib.open( "synced", "w" );
+    SysLib.close( closed );
+    SysLib.close( synced );
+    SysLib.sync( );
+    return closed != -1 && synced != -1;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: two writers on one file....." );
+    int first = SysLib.open( "shared", "w+" );
+    int second = SysLib.open( "shared", "w+" );
+    boolean ok = write( first, filled( 600, 'a' ), "shared" ) &&
+      expect( "shared", second, 600 ) &&        // the first's length
+      SysLib.seek( second, 0, SEEK_END ) == 600 &&
+      write( second, filled( 600, 'b' ), "shared" ) &&
+      expect( "shared", first, 1200 );          // and back
+    if ( ok ) {
+      // the second writer's blocks, read through the first descriptor
+      byte[] b = new byte[1200];
+      SysLib.seek( first, 0, SEEK_SET );
+      ok = SysLib.read( first, b ) == 1200 &&
+        holds( "shared", b, 0, 600, 'a' ) &&
+        holds( "shared", b, 600, 1200, 'b' );
+    }
+    SysLib.close( first );
+    SysLib.close( second );
+    if ( !ok )
+      return false;
+    // an open after both closed finds the same inode
+    int third = SysLib.open( "shared", "r" );
+    ok = expect( "shared", third, 1200 );
+    SysLib.close( third );
+    if ( !ok )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: write, close the last fd...." );
+    int writer = SysLib.open( "closed", "w" );
+    int reader = SysLib.open( "closed", "r" );
+    boolean ok = write( writer, filled( 2000, 'c' ), "closed" );
+    SysLib.close( writer );
+    // the reader keeps the inode in use; its close is the last
+    ok = ok && expect( "closed", reader, 2000 );
+    SysLib.close( reader );
+    if ( !ok )
+      return false;
+    // only the journal's group commit makes the close durable
+    SysLib.sleep( commitWait );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: write, sync with the fd open" );
+    int fd = SysLib.open( "synced", "w" );
+    if ( !write( fd, filled( 1500, 's' ), "synced" ) )
+      return false;
+    // halted right after the sync, before a group commit can happen
+    SysLib.sync( );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: \"closed\" after the reboot..." );
+    if ( !holds( "closed", 2000, 'c' ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: \"synced\" after the reboot..." );
+    if ( !holds( "synced", 1500, 's' ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,141 @@
+// Test8 [first [count]]: the buffer cache behind cread( ) and cwrite( ),
+// on count blocks from first on, by default 6000 blocks from 20000 on,
+// more than a 1MB cache has frames.  Boot with blocks=40000: the blocks
+// must lie beyond the file system, which csync( ) syncs as well.
+class Test8 extends Thread {
+  final int first;
+  final int count;
+  final int hot;
+  final byte[] buf = new byte[Disk.blockSize];
+
+  public Test8( String args[] ) {
+    first = Integer.parseInt( args[0] );
+    count = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 6000;
+    hot = count / 4;
+  }
+
+  public Test8( ) {
+    first = 20000;
+    count = 6000;
+    hot = count / 4;
+  }
+
+  public void run( ) {
+    if ( test1( ) ) // cwrite every block, cread them back
+      SysLib.cout("Correct behavior of cwrite and cread..........2\n");
+    if ( test2( ) ) // rewrite the hot blocks three times
+      SysLib.cout("Correct behavior of rewriting cached blocks...2\n");
+    if ( test3( ) ) // csync, then rawread every block
+      SysLib.cout("Correct behavior of csync.....................2\n");
+    if ( test4( ) ) // cflush, then cread every block from the disk
+      SysLib.cout("Correct behavior of cflush....................2\n");
+    if ( test5( ) ) // a dirty block left alone is written back by age
+      SysLib.cout("Correct behavior of the flusher...............2\n");
+    SysLib.exit( );
+  }
+
+  // the contents of block first + i in its version
+  private void fill( int i, int version ) {
+    for ( int j = 0; j < buf.length; j++ )
+      buf[j] = ( byte )( i * 7 + version + j );
+    SysLib.int2bytes( first + i, buf, 0 );
+  }
+
+  private boolean check( int i, int version, String what ) {
+    if ( SysLib.bytes2int( buf, 0 ) != first + i ) {
+      SysLib.cout( what + " block " + ( first + i ) + " holds block " +
+                   SysLib.bytes2int( buf, 0 ) + " (wrong)\n" );
+      return false;
+    }
+    for ( int j = 4; j < buf.length; j++ )
+      if ( buf[j] != ( byte )( i * 7 + version + j ) ) {
+        SysLib.cout( what + " block " + ( first + i ) + " buf[" + j +
+                     "] = " + buf[j] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  // the hot blocks end up in version 3, the others in version 0
+  private int version( int i ) {
+    return ( i < hot ) ? 3 : 0;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: cwrite and cread " + count + " blocks..." );
+    for ( int i = 0; i < count; i++ ) {
+      fill( i, 0 );
+      SysLib.cwrite( first + i, buf );
+    }
+    for ( int i = 0; i < count; i++ ) {
+      SysLib.cread( first + i, buf );
+      if ( !check( i, 0, "cread" ) )
+        return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: rewrite " + hot + " blocks three times..." );
+    for ( int version = 1; version <= 3; version++ )
+      for ( int i = 0; i < hot; i++ ) {
+        fill( i, version );
+        SysLib.cwrite( first + i, buf );
+      }
+    for ( int i = 0; i < count; i++ ) {
+      SysLib.cread( first + i, buf );
+      if ( !check( i, version( i ), "cread" ) )
+        return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: csync and rawread them......" );
+    SysLib.csync( );
+    for ( int i = 0; i < count; i++ ) {
+      SysLib.rawread( first + i, buf );
+      if ( !check( i, version( i ), "rawread" ) )
+        return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: cflush and cread them......." );
+    SysLib.flush( );
+    for ( int i = 0; i < count; i++ ) {
+      SysLib.cread( first + i, buf );
+      if ( !check( i, version( i ), "cread" ) )
+        return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: cwrite a block and wait....." );
+    fill( 0, 4 );
+    SysLib.cwrite( first, buf );
+    SysLib.sleep( CacheFlusher.maxAge + 3 * CacheFlusher.interval );
+    SysLib.rawread( first, buf );
+    if ( !check( 0, 4, "rawread" ) )
+      return false;
+    StringBuffer stats = new StringBuffer( );
+    SysLib.diskstats( stats );
+    if ( stats.indexOf( " dirty=0 " ) < 0 ) {
+      SysLib.cout( "blocks left dirty (wrong)\n" + stats );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
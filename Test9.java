@@ -0,0 +1,126 @@
+import java.util.Random;
+
+// Test9 [threads [blocks [rounds]]]: threads, 8 by default, hammer the
+// buffer cache at once, each cwriting new versions of its own blocks
+// and creading them and the other threads' blocks back, while the
+// flusher writes back behind them.  The blocks start at 20000, beyond
+// the file system: boot with blocks=40000, and "l Test9 8 1000" uses
+// more blocks than a 1MB cache has frames.
+class Test9 extends Thread {
+  final static int first = 20000;
+  final int threads;
+  final int blocks;  // per thread
+  final int rounds;  // per thread
+  int[][] versions;
+  int wrong = 0;
+
+  public Test9( String args[] ) {
+    threads = Integer.parseInt( args[0] );
+    blocks = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 100;
+    rounds = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 4000;
+  }
+
+  public Test9( ) {
+    threads = 8;
+    blocks = 100;
+    rounds = 4000;
+  }
+
+  public void run( ) {
+    versions = new int[threads][blocks];
+    if ( test1( ) ) // threads cwrite and cread at once
+      SysLib.cout("Correct behavior of concurrent cwrite/cread...2\n");
+    if ( test2( ) ) // csync, then rawread the last versions
+      SysLib.cout("Correct behavior of csync after the threads...2\n");
+    SysLib.exit( );
+  }
+
+  // the contents of block in version
+  private void fill( byte[] buf, int block, int version ) {
+    SysLib.int2bytes( block, buf, 0 );
+    SysLib.int2bytes( version, buf, 4 );
+    buf[buf.length - 1] = ( byte )version;
+  }
+
+  private boolean holds( byte[] buf, int block, int version ) {
+    return SysLib.bytes2int( buf, 0 ) == block &&
+      SysLib.bytes2int( buf, 4 ) == version &&
+      buf[buf.length - 1] == ( byte )version;
+  }
+
+  private synchronized void wrong( String what ) {
+    if ( wrong++ == 0 )
+      SysLib.cout( what + " (wrong)\n" );
+  }
+
+  // thread t's share of the work
+  private void work( int t ) {
+    byte[] buf = new byte[Disk.blockSize];
+    Random random = new Random( t );
+    int[] version = versions[t];
+    for ( int k = 0; k < rounds; k++ ) {
+      int i = random.nextInt( blocks );
+      int block = first + t * blocks + i;
+      if ( random.nextInt( 4 ) == 0 ) {
+        fill( buf, block, ++version[i] );
+        SysLib.cwrite( block, buf );
+      } else {
+        SysLib.cread( block, buf );
+        if ( version[i] > 0 && !holds( buf, block, version[i] ) )
+          wrong( "thread " + t + " block " + block + " version " +
+                 SysLib.bytes2int( buf, 4 ) + ", not " + version[i] );
+      }
+      // someone else's block, whatever version it is in
+      int other = first + random.nextInt( threads * blocks );
+      SysLib.cread( other, buf );
+    }
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: " + threads + " threads, " + rounds + " rounds each..." );
+    Thread[] workers = new Thread[threads];
+    for ( int t = 0; t < threads; t++ ) {
+      final int me = t;
+      workers[t] = new Thread( ) {
+        public void run( ) {
+          work( me );
+        }
+      };
+      workers[t].start( );
+    }
+    for ( int t = 0; t < threads; t++ )
+      try {
+        workers[t].join( );
+      } catch ( InterruptedException e ) {
+      }
+    if ( wrong > 0 ) {
+      SysLib.cout( wrong + " reads wrong\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: csync and rawread them......" );
+    SysLib.csync( );
+    byte[] buf = new byte[Disk.blockSize];
+    for ( int t = 0; t < threads; t++ )
+      for ( int i = 0; i < blocks; i++ ) {
+        int block = first + t * blocks + i;
+        if ( versions[t][i] == 0 )
+          continue;
+        SysLib.rawread( block, buf );
+        if ( !holds( buf, block, versions[t][i] ) ) {
+          SysLib.cout( "block " + block + " version " +
+                       SysLib.bytes2int( buf, 4 ) + ", not " +
+                       versions[t][i] + " (wrong)\n" );
+          return false;
+        }
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
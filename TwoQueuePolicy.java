@@ -0,0 +1,76 @@
+/**
+ * TwoQueuePolicy
+ * the full 2Q policy of Johnson and Shasha.  A block seen for the first
+ * time enters A1in, a FIFO of about a quarter of the frames, and is
+ * remembered in the ghost list A1out when it leaves.  Only a block that
+ * misses again while in A1out is taken into Am, an LRU list holding the
+ * rest of the frames.  A scan therefore passes through A1in without
+ * pushing the working set out of Am.
+ */
+public class TwoQueuePolicy implements CachePolicy {
+   private static final int A1IN = 0;
+   private static final int AM = 1;
+   private static final int A1OUT = 0; // the ghost list
+
+   private final int kin;      // the size A1in may grow to before it shrinks
+   private IndexLists lists;   // A1in and Am, of frames
+   private GhostLists ghosts;  // A1out, of block numbers
+   private int blockOf[];      // frame -> block number
+
+   public TwoQueuePolicy( int frames ) {
+      kin = Math.max( frames / 4, 1 );
+      lists = new IndexLists( frames, 2 );
+      ghosts = new GhostLists( Math.max( frames / 2, 1 ), 1 );
+      blockOf = new int[frames];
+      clear( );
+   }
+
+   public void hit( int frame ) {
+      if ( lists.listOf( frame ) == AM )
+         lists.addFront( AM, frame );
+      // a hit in A1in is most likely the same burst of use: leave it be
+   }
+
+   public void insert( int frame, int blockId ) {
+      boolean seen = ghosts.listOf( blockId ) == A1OUT;
+      ghosts.remove( blockId );
+      if ( blockOf[frame] != IntMap.NONE && lists.listOf( frame ) == A1IN ) {
+         if ( ghosts.isFull( ) )
+            ghosts.dropBack( A1OUT );
+         ghosts.add( A1OUT, blockOf[frame] );
+      }
+      lists.addFront( seen ? AM : A1IN, frame );
+      blockOf[frame] = blockId;
+   }
+
+   // a block dropped on advice is not remembered in a ghost list
+   public void remove( int frame ) {
+      lists.remove( frame );
+      blockOf[frame] = IntMap.NONE;
+   }
+
+   public int victim( int blockId, Frames frames ) {
+      int first = ( lists.size( A1IN ) > kin ) ? A1IN : AM;
+      int frame = oldest( first, frames );
+      return ( frame != IntMap.NONE ) ? frame
+                                      : oldest( A1IN + AM - first, frames );
+   }
+
+   // the frame nearest the back of list that can be evicted
+   private int oldest( int list, Frames frames ) {
+      int frame = lists.back( list );
+      while ( frame != IndexLists.NONE && !frames.canEvict( frame ) )
+         frame = lists.previous( frame );
+      return frame;
+   }
+
+   public void clear( ) {
+      lists.clear( );
+      ghosts.clear( );
+      java.util.Arrays.fill( blockOf, IntMap.NONE );
+   }
+
+   public String getName( ) {
+      return "2q";
+   }
+}
@@ -0,0 +1,189 @@
+/**
+ * Volume.java
+ * block geometry of the formatted file system and its block I/O.  A file
+ * system block is blockSize bytes, a power of two from 512 to 4096 chosen
+ * at format time, and occupies blockSize / 512 consecutive disk blocks, so
+ * every file system block moves in one vectored disk command.  When the
+ * kernel boots with fscache=on, block I/O goes through the buffer cache
+ * instead and dirty blocks reach the disk when the cache's CacheFlusher
+ * writes them back, at a journal commit or at sync.
+ */
+public class Volume {
+    public final static int minBlockSize = Disk.blockSize;
+    public final static int maxBlockSize = 4096;
+
+    // on-disk format revisions
+    public final static int shortPointers = 1; // 32-byte inodes, 16-bit pointers
+    public final static int intPointers = 2;   // 64-byte inodes, 32-bit pointers
+    public final static int extents = 3;       // 64-byte inodes of block runs
+
+    // bytes per file system block, set from the superblock
+    public static int blockSize = Disk.blockSize;
+
+    // the format revision, set from the superblock
+    public static int revision = shortPointers;
+
+    // the metadata journal, null on volumes formatted without one
+    public static Journal journal = null;
+
+    // the write-back buffer cache, null unless booted with fscache=on
+    public static Cache cache = null;
+
+    /**
+     * isBlockSize
+     * check if size can be used as a file system block size
+     * 
+     * @param size the candidate block size in bytes
+     * 
+     */
+    public static boolean isBlockSize(int size) {
+        return size >= minBlockSize && size <= maxBlockSize
+            && (size & (size - 1)) == 0;
+    }
+
+    /**
+     * isRevision
+     * check if rev is a format revision this file system understands
+     * 
+     * @param rev the candidate revision
+     * 
+     */
+    public static boolean isRevision(int rev) {
+        return rev == shortPointers || rev == intPointers || rev == extents;
+    }
+
+    /**
+     * sectors
+     * the number of disk blocks behind each file system block
+     * 
+     */
+    public static int sectors() {
+        return blockSize / Disk.blockSize;
+    }
+
+    /**
+     * read
+     * read b.length / blockSize file system blocks starting at block
+     * 
+     * @param block the first file system block
+     * @param b the buffer to fill
+     * 
+     */
+    public static int read(int block, byte[] b) {
+        Cache c = cache;
+        if (c != null) {
+            return c.readv(block * sectors(), b) ? Kernel.OK : Kernel.ERROR;
+        }
+        if (b.length == Disk.blockSize && blockSize == Disk.blockSize) {
+            return SysLib.rawread(block, b);
+        }
+        return SysLib.rawreadv(block * sectors(), b);
+    }
+
+    /**
+     * write
+     * write b.length / blockSize file system blocks starting at block
+     * 
+     * @param block the first file system block
+     * @param b the data to write
+     * 
+     */
+    public static int write(int block, byte[] b) {
+        Cache c = cache;
+        if (c != null) {
+            return c.writev(block * sectors(), b) ? Kernel.OK : Kernel.ERROR;
+        }
+        if (b.length == Disk.blockSize && blockSize == Disk.blockSize) {
+            return SysLib.rawwrite(block, b);
+        }
+        return SysLib.rawwritev(block * sectors(), b);
+    }
+
+    /**
+     * flush
+     * write the blocks dirty in the buffer cache to the disk
+     * 
+     */
+    public static void flush() {
+        Cache c = cache;
+        if (c != null) {
+            c.writeBack();
+        }
+    }
+
+    /**
+     * flush
+     * write the blocks from block to block + count - 1 that are dirty in
+     * the buffer cache to the disk, leaving the other dirty blocks there
+     * 
+     * @param block the first file system block
+     * @param count the number of blocks
+     * 
+     */
+    public static void flush(int block, int count) {
+        Cache c = cache;
+        if (c != null) {
+            c.writeBack(block * sectors(), count * sectors());
+        }
+    }
+
+    /**
+     * advise
+     * pass a Kernel.ADVISE_WILLNEED or ADVISE_DONTNEED hint for count file
+     * system blocks from block on to the buffer cache, if there is one
+     * 
+     * @param block the first file system block
+     * @param count the number of blocks
+     * @param advice the hint
+     * 
+     */
+    public static void advise(int block, int count, int advice) {
+        Cache c = cache;
+        if (c != null) {
+            c.advise(block * sectors(), count * sectors(), advice);
+        }
+    }
+
+    /**
+     * readMeta
+     * read one metadata block, as last written through the journal
+     * 
+     * @param block the file system block
+     * @param b the buffer to fill
+     * 
+     */
+    public static int readMeta(int block, byte[] b) {
+        Journal j = journal;
+        return (j != null) ? j.read(block, b) : read(block, b);
+    }
+
+    /**
+     * writeMeta
+     * write one metadata block (an inode block, the superblock or a free
+     * list block) through the journal
+     * 
+     * @param block the file system block
+     * @param b the data to write
+     * 
+     */
+    public static int writeMeta(int block, byte[] b) {
+        Journal j = journal;
+        return (j != null) ? j.write(block, b) : write(block, b);
+    }
+
+    /**
+     * revoke
+     * tell the journal that blocks first to first + count - 1 now hold
+     * data written with write
+     * 
+     * @param first the first file system block
+     * @param count the number of blocks
+     * 
+     */
+    public static void revoke(int first, int count) {
+        Journal j = journal;
+        if (j != null) {
+            j.revoke(first, count);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * ZeroLatencyModel
+ * a disk that serves every request at once, for measuring the kernel and
+ * the file system without any device time.
+ */
+public class ZeroLatencyModel implements DiskModel {
+   private Histogram serviceTimes;
+
+   public ZeroLatencyModel( ) {
+      serviceTimes = new Histogram( "us" );
+   }
+
+   public long serviceTime( int headBlockId, int blockId, int count ) {
+      serviceTimes.record( 0 );
+      return 0;
+   }
+
+   public Histogram getServiceTimes( ) {
+      return serviceTimes;
+   }
+
+   public String getName( ) {
+      return "zero";
+   }
+}